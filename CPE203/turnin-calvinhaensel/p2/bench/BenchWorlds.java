@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import edu.calpoly.spritely.Size;
+
+/**
+ * Helpers for building worlds to benchmark.  Everything runs headless,
+ * so no images are needed.
+ *
+ * The benchmarks use JMH.  There is no build file, so compile them
+ * together with the sources, with jmh-core and
+ * jmh-generator-annprocess on the class path, and run them through
+ * org.openjdk.jmh.Main, e.g.
+ *
+ *     javac -cp spritely.jar:jmh-core.jar:jmh-generator-annprocess.jar \
+ *         -d out src/*.java bench/*.java
+ *     java -cp out:spritely.jar:jmh-core.jar:... org.openjdk.jmh.Main \
+ *         WorldModelBenchmark -p gridSize=256,1024
+ */
+final class BenchWorlds
+{
+    private BenchWorlds()
+    {
+    }
+
+    /**
+     * Placeholder tiles, shared by every benchmark world.
+     */
+    public static final WorldAssets ASSETS = WorldAssets.placeholders();
+
+    /**
+     * A square world scattered with entityCount entities of the given
+     * kind, at distinct random positions.
+     */
+    public static WorldModel scattered(int gridSize, int entityCount,
+                                       EntityKind kind, long seed)
+    {
+        WorldModel world = new WorldModel(new Size(gridSize, gridSize), seed,
+                                          ASSETS);
+        Random random = new Random(seed);
+        int count = Math.min(entityCount, gridSize * gridSize);
+        while (world.entities.size() < count)
+        {
+            Point pos = new Point(random.nextInt(gridSize),
+                                  random.nextInt(gridSize));
+            if (!world.isOccupied(pos))
+            {
+                world.addEntity(create(kind, pos));
+            }
+        }
+        return world;
+    }
+
+    public static Entity create(EntityKind kind, Point pos)
+    {
+        switch (kind)
+        {
+        case BLACKSMITH:
+            return Entity.createBlacksmith(ASSETS, pos);
+        case MINER_FULL:
+            return Entity.createMinerFull(ASSETS, 2, pos, 900, 100);
+        case MINER_NOT_FULL:
+            return Entity.createMinerNotFull(ASSETS, 2, pos, 900, 100);
+        case ORE:
+            return Entity.createOre(ASSETS, pos, 25000);
+        case ORE_BLOB:
+            return Entity.createOreBlob(ASSETS, pos, 6000, 100);
+        case QUAKE:
+            return Entity.createQuake(ASSETS, pos);
+        case VEIN:
+            return Entity.createVein(ASSETS, pos, 10000);
+        case OBSTACLE:
+        default:
+            return Entity.createObstacle(ASSETS, pos);
+        }
+    }
+
+    /**
+     * The seed for tiledDefault worlds, so every trial sees the same
+     * run of events.
+     */
+    public static final long SEED = 203;
+
+    /**
+     * The default world from VirtualWorld.WORLD_FILE, tiled copies x
+     * copies times over a correspondingly larger grid.
+     */
+    public static WorldModel tiledDefault(int copies) throws IOException
+    {
+        Simulation original = WorldFile.load(VirtualWorld.WORLD_FILE.toPath(),
+                                             ASSETS, SEED, 1.0,
+                                             SchedulerKind.HEAP,
+                                             WorldGrid::create, null);
+        List<Entity> template = new ArrayList<>(original.model.entities);
+
+        Size tile = original.model.size;
+        WorldModel world = new WorldModel(new Size(tile.width * copies,
+                                                   tile.height * copies),
+                                          SEED, ASSETS);
+        for (int cy = 0; cy < copies; cy++)
+        {
+            for (int cx = 0; cx < copies; cx++)
+            {
+                for (Entity e : template)
+                {
+                    Point pos = new Point(e.position.getX() + cx * tile.width,
+                                          e.position.getY() + cy * tile.height);
+                    world.addEntity(new Entity(e.kind, pos, e.tiles,
+                                               e.resourceLimit,
+                                               e.resourceCount,
+                                               e.actionPeriod,
+                                               e.animationPeriod));
+                }
+            }
+        }
+        return world;
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.TimeUnit;
+import edu.calpoly.spritely.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the event schedule for each queue implementation.
+ * Every target is a miner, which keeps an activity and an animation
+ * event queued, so there are twice as many events pending as targets.
+ *
+ * Events and actions are recycled, so once warmed up neither
+ * benchmark should allocate: run with -prof gc and check that
+ * gc.alloc.rate.norm is 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventScheduleBenchmark
+{
+    @Param({"HEAP", "TIMING_WHEEL"})
+    public SchedulerKind schedulerKind;
+
+    @Param({"1000", "100000"})
+    public int targetCount;
+
+    private EventSchedule eventSchedule;
+    private WorldModel world;
+    private Entity[] targets;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        world = new WorldModel(new Size(1, 1), 0, BenchWorlds.ASSETS);
+        eventSchedule = new EventSchedule(1.0, schedulerKind);
+        targets = new Entity[targetCount];
+        for (int i = 0; i < targetCount; i++)
+        {
+            targets[i] = Entity.createMinerNotFull(BenchWorlds.ASSETS, 2,
+                new Point(0, 0), 100 + i % 30000, 100);
+            targets[i].scheduleActions(targets[i], eventSchedule, world);
+        }
+    }
+
+    private Entity nextTarget()
+    {
+        next = (next + 1) % targets.length;
+        return targets[next];
+    }
+
+    /**
+     * Cancel both of a target's events and schedule them again, as
+     * every transformation and pickup does.
+     */
+    @Benchmark
+    public void unscheduleAndReschedule()
+    {
+        Entity target = nextTarget();
+        eventSchedule.unscheduleAllEvents(target);
+        target.scheduleActions(target, eventSchedule, world);
+    }
+
+    /**
+     * Advance the clock by one frame.  Every event run is an animation
+     * or a miner with nothing to find, so each one reschedules itself
+     * and the queue stays the same size.
+     */
+    @Benchmark
+    public int processEvents()
+    {
+        eventSchedule.processEvents(eventSchedule.currentTime
+                                    + 1000.0 / 30);
+        return eventSchedule.eventQueue.size();
+    }
+}
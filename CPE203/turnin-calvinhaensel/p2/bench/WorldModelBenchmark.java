@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queries and updates on a WorldModel, at a range of grid sizes and
+ * entity counts.  Each Point query has a cell-index twin; running with
+ * -prof gc should show the cell versions at 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldModelBenchmark
+{
+    @Param({"64", "256", "1024"})
+    public int gridSize;
+
+    @Param({"100", "10000"})
+    public int entityCount;
+
+    private static final int QUERIES = 1024;
+
+    private WorldModel world;
+    private Point[] queries;
+    private int[] queryCells;
+    private List<Entity> movers;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        // half the entities are ore, to be searched for; the rest are
+        // obstacles, which findNearest has to look past
+        world = BenchWorlds.scattered(gridSize, entityCount / 2,
+                                      EntityKind.ORE, 1);
+        WorldModel obstacles = BenchWorlds.scattered(gridSize,
+            entityCount - entityCount / 2, EntityKind.OBSTACLE, 2);
+        for (Entity e : obstacles.entities)
+        {
+            if (!world.isOccupied(e.position))
+            {
+                world.addEntity(BenchWorlds.create(EntityKind.OBSTACLE,
+                                                   e.position));
+            }
+        }
+
+        Random random = new Random(3);
+        queries = new Point[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+        {
+            queries[i] = new Point(random.nextInt(gridSize),
+                                   random.nextInt(gridSize));
+        }
+        queryCells = new int[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+        {
+            queryCells[i] = world.cellOf(queries[i]);
+        }
+        movers = new ArrayList<>(world.entities);
+    }
+
+    private Point nextQuery()
+    {
+        next = (next + 1) & (QUERIES - 1);
+        return queries[next];
+    }
+
+    private int nextQueryCell()
+    {
+        next = (next + 1) & (QUERIES - 1);
+        return queryCells[next];
+    }
+
+    @Benchmark
+    public Entity findNearest()
+    {
+        return world.findNearest(nextQuery(), EntityKind.ORE);
+    }
+
+    @Benchmark
+    public Point findOpenAround()
+    {
+        return world.findOpenAround(nextQuery());
+    }
+
+    @Benchmark
+    public int findOpenAroundCell()
+    {
+        int cell = nextQueryCell();
+        return world.findOpenAround(world.cellX(cell), world.cellY(cell));
+    }
+
+    /**
+     * Move an entity to a random free cell, then back again, so the
+     * world is unchanged between invocations.
+     */
+    @Benchmark
+    public Point moveEntity()
+    {
+        Point to = nextQuery();
+        if (world.isOccupied(to))
+        {
+            return to;
+        }
+        Entity mover = movers.get(next % movers.size());
+        Point from = mover.position;
+        world.moveEntity(mover, to);
+        world.moveEntity(mover, from);
+        return from;
+    }
+
+    /**
+     * As moveEntity, but naming cells by index.
+     */
+    @Benchmark
+    public int moveEntityCell()
+    {
+        int to = nextQueryCell();
+        if (world.isOccupied(to))
+        {
+            return to;
+        }
+        Entity mover = movers.get(next % movers.size());
+        int from = world.cellOf(mover.position);
+        world.moveEntity(mover, to);
+        world.moveEntity(mover, from);
+        return from;
+    }
+
+    /**
+     * Count entities by kind by walking the entity objects...
+     */
+    @Benchmark
+    public int[] countByKindEntities()
+    {
+        int[] counts = new int[EntityKind.values().length];
+        for (Entity e : world.entities)
+        {
+            counts[e.kind.ordinal()]++;
+        }
+        return counts;
+    }
+
+    /**
+     * ...and by sweeping the entity store.
+     */
+    @Benchmark
+    public int[] countByKindStore()
+    {
+        int[] counts = new int[EntityKind.values().length];
+        world.store.countByKind(counts);
+        return counts;
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One frame's worth of simulation on the default world, tiled over a
+ * larger grid.  copies=1 is the world as shipped; copies=10 is a
+ * 400x300 grid with a hundred times as many entities.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldTickBenchmark
+{
+    public static final double FRAME_MS = 1000.0 / 30;
+
+    @Param({"1", "10", "50"})
+    public int copies;
+
+    @Param({"HEAP", "TIMING_WHEEL"})
+    public SchedulerKind schedulerKind;
+
+    @Param({"false", "true"})
+    public boolean animationClock;
+
+    private EventSchedule eventSchedule;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException
+    {
+        WorldModel world = BenchWorlds.tiledDefault(copies);
+        eventSchedule = new EventSchedule(1.0, schedulerKind);
+        Simulation.scheduleInitialActions(world, eventSchedule);
+        if (animationClock)
+        {
+            eventSchedule.useAnimationClock(world.entities, world, false);
+        }
+    }
+
+    @Benchmark
+    public int tick()
+    {
+        eventSchedule.processEvents(eventSchedule.currentTime + FRAME_MS);
+        return eventSchedule.eventQueue.size();
+    }
+}
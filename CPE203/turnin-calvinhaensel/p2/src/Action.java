@@ -42,11 +42,13 @@ final class Action
     {
         
         entity.nextImage();
+        world.markDirty(entity.position);
+        world.updateEntity(entity);
 
         if (repeatCount != 1)
         {
             eventSchedule.scheduleEvent(entity,
-                entity.createAnimationAction(entity,
+                entity.createAnimationAction(entity, world,
                     Math.max(repeatCount - 1, 0)),
                 entity.getAnimationPeriod());
         }
@@ -54,6 +56,21 @@ final class Action
 
     public void
     executeActivityAction(EventSchedule eventSchedule)
+    {
+        SimulationMetrics metrics = eventSchedule.metrics;
+        if (metrics == null)
+        {
+            runActivity(eventSchedule);
+            return;
+        }
+        EntityKind kind = entity.kind;
+        long start = System.nanoTime();
+        runActivity(eventSchedule);
+        metrics.activityTook(kind, System.nanoTime() - start);
+    }
+
+    private void
+    runActivity(EventSchedule eventSchedule)
     {
         switch (entity.kind)
         {
@@ -0,0 +1,488 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Runs animations off a clock of their own, rather than as events in
+ * an EventSchedule's queue.  Animated entities are kept in phases:
+ * every entity whose next image is due at the same time, with the same
+ * animation period, is in the same phase, and a phase is moved on all
+ * at once, so a world full of entities that started together costs a
+ * handful of queue operations per tick instead of one per entity.
+ *
+ * Each step is timed exactly as an ANIMATION event would have been,
+ * and an animation only changes its own entity, so a world animated
+ * this way goes through the same states as one animated by events.
+ * See EventSchedule.useAnimationClock.
+ *
+ * A lazy clock does no work as time goes by at all.  It only notes
+ * when each animation started, and leaves Entity.getCurrentTile(time)
+ * to work out the tile when something draws it, so animation costs
+ * nothing where nothing is drawn.  Entity.tileIndex then stays where
+ * the animation started, until remove catches it up.  Its entities are
+ * still kept in phases, of those that started together, so that
+ * markChanged can find the ones whose tile has changed since the last
+ * frame without looking at the rest.
+ *
+ * Once the phases in use have been made, stepping allocates nothing:
+ * phases are found in an open-addressed table keyed by the bits of
+ * their time and their period, and a phase that empties is kept for
+ * reuse rather than dropped.
+ */
+final class AnimationClock
+{
+    /**
+     * The animated entities due at one time, with one period.  On a
+     * lazy clock, those that started at one time, with one period;
+     * time is then when markChanged should next look at them, and
+     * shown how many steps they had taken when it last did.
+     */
+    static final class Phase
+    {
+        double time;
+        double start;
+        long period;
+        long shown;
+        Entity[] members;
+        int size;
+        Phase nextFree;
+
+        Phase()
+        {
+            this.members = new Entity[4];
+            this.size = 0;
+        }
+
+        void reset(double time, long period)
+        {
+            this.time = time;
+            this.start = time;
+            this.period = period;
+            this.shown = 0;
+        }
+    }
+
+    /**
+     * How far ahead of a lazy phase's next step, as a fraction of its
+     * step, markChanged looks at it, in case rounding puts the step a
+     * little early.
+     */
+    private static final double EARLY = 1e-9;
+
+    private static final int INITIAL_SLOTS = 1 << 6;
+
+    private final double timeScale;
+    private final WorldModel world;
+    private final boolean lazy;
+    private final PriorityQueue<Phase> due;
+
+    /**
+     * The phases, by time and period, or on a lazy clock by start and
+     * period, so a new entity can join one that is already in step with
+     * it.  The table is open-addressed, with linear probing.
+     */
+    private Phase[] table;
+    private int tableBits;
+    private int phases;
+
+    // emptied phases, kept for reuse
+    private Phase free;
+    private int animated;
+
+    /**
+     * Whether markChanged has been called.  Until then, a lazy clock's
+     * phases aren't in due at all.
+     */
+    private boolean tracking;
+
+    public AnimationClock(double timeScale, WorldModel world, boolean lazy)
+    {
+        this.timeScale = timeScale;
+        this.world = world;
+        this.lazy = lazy;
+        this.due = new PriorityQueue<>(
+            (a, b) -> Double.compare(a.time, b.time));
+        this.table = new Phase[INITIAL_SLOTS];
+        this.tableBits = Integer.numberOfTrailingZeros(INITIAL_SLOTS);
+        this.phases = 0;
+        this.free = null;
+        this.animated = 0;
+        this.tracking = false;
+    }
+
+    public boolean isLazy()
+    {
+        return lazy;
+    }
+
+    /**
+     * @return how many entities are being animated.
+     */
+    public int size()
+    {
+        return animated;
+    }
+
+    /**
+     * Start animating entity, moving to its next image at time and then
+     * every period ms of game time, as with an animation Action with
+     * the given repeatCount.  It must not be animated already; remove
+     * it first.
+     */
+    public void add(Entity entity, double time, long period, int repeatCount)
+    {
+        assert entity.animationPhase == null;
+        entity.animationRepeat = repeatCount;
+        if (lazy)
+        {
+            entity.animationStart = time;
+            entity.animationStep = period * timeScale;
+        }
+        join(phaseAt(time, period), entity);
+        animated++;
+    }
+
+    /**
+     * Stop animating entity, if it was, leaving it on the image it
+     * shows at game time now.
+     */
+    public void remove(Entity entity, double now)
+    {
+        Phase phase = entity.animationPhase;
+        if (phase == null)
+        {
+            return;
+        }
+        leave(phase, entity.animationSlot);
+        entity.animationPhase = null;
+        if (lazy)
+        {
+            // keep the steps taken so far, which only tileIndexAt knew
+            entity.tileIndex = entity.tileIndexAt(now);
+            entity.animationStep = 0.0;
+            world.markDirty(entity.position);
+            world.updateEntity(entity);
+            if (phase.size == 0 && !tracking)
+            {
+                // not in due, so nothing else will drop it
+                forget(phase);
+                recycle(phase);
+            }
+        }
+        animated--;
+    }
+
+    /**
+     * @return when entity next moves to its next image, or NaN if it
+     *         isn't being animated.  For a lazy clock, this is when the
+     *         first step was due, and what add was given.
+     */
+    public double nextTime(Entity entity)
+    {
+        Phase phase = entity.animationPhase;
+        if (phase == null)
+        {
+            return Double.NaN;
+        }
+        return lazy ? entity.animationStart : phase.time;
+    }
+
+    /**
+     * Run every animation step due at or before time.
+     *
+     * @param metrics  Where to count them, or null.
+     */
+    public void advanceTo(double time, SimulationMetrics metrics)
+    {
+        if (lazy)
+        {
+            return;
+        }
+        while (!due.isEmpty() && due.peek().time <= time)
+        {
+            Phase phase = due.poll();
+            forget(phase);
+
+            // backwards, so an entity whose animation ends can be
+            // replaced by one that has already had its turn
+            for (int i = phase.size - 1; i >= 0; i--)
+            {
+                Entity entity = phase.members[i];
+                entity.nextImage();
+                world.markDirty(entity.position);
+                world.updateEntity(entity);
+                if (metrics != null)
+                {
+                    metrics.animationRan(entity);
+                }
+
+                if (entity.animationRepeat == 1)
+                {
+                    leave(phase, i);
+                    entity.animationPhase = null;
+                    animated--;
+                }
+                else if (entity.animationRepeat > 1)
+                {
+                    entity.animationRepeat--;
+                }
+            }
+
+            if (phase.size == 0)
+            {
+                recycle(phase);
+                continue;
+            }
+            phase.time = phase.time + (phase.period * timeScale);
+            Phase existing = find(phase.time, phase.period);
+            if (existing == null)
+            {
+                remember(phase);
+            }
+            else
+            {
+                // two phases that started apart have come into step
+                for (int i = 0; i < phase.size; i++)
+                {
+                    join(existing, phase.members[i]);
+                    phase.members[i] = null;
+                }
+                phase.size = 0;
+                recycle(phase);
+            }
+        }
+    }
+
+    /**
+     * For a lazy clock, mark dirty the cell of every entity whose tile
+     * at time is different from the one it had at since, which should
+     * be the time of the last call, or of the last full paint.  Only
+     * the phases with a step due in between are looked at.
+     */
+    public void markChanged(double since, double time)
+    {
+        assert lazy;
+        if (!tracking)
+        {
+            tracking = true;
+            for (Phase phase : table)
+            {
+                if (phase != null)
+                {
+                    phase.shown = stepsAt(phase.start,
+                                          phase.period * timeScale, since);
+                    lookAfter(phase, since);
+                    due.add(phase);
+                }
+            }
+        }
+        while (!due.isEmpty() && due.peek().time <= time)
+        {
+            Phase phase = due.poll();
+            if (phase.size == 0)
+            {
+                forget(phase);
+                recycle(phase);
+                continue;
+            }
+            long steps = stepsAt(phase.start, phase.period * timeScale, time);
+            if (steps != phase.shown)
+            {
+                for (int i = 0; i < phase.size; i++)
+                {
+                    Entity entity = phase.members[i];
+                    // after repeatCount steps, the tile stays put
+                    if (entity.animationRepeat == 0
+                        || phase.shown < entity.animationRepeat)
+                    {
+                        world.markDirty(entity.position);
+                    }
+                }
+                phase.shown = steps;
+            }
+            lookAfter(phase, time);
+            due.add(phase);
+        }
+    }
+
+    /**
+     * @return how many steps an animation that started at start, with
+     *         the given step, has taken by time; see Entity.tileIndexAt.
+     */
+    static long stepsAt(double start, double step, double time)
+    {
+        if (time < start)
+        {
+            return 0;
+        }
+        return (long) ((time - start) / step) + 1;
+    }
+
+    /**
+     * Set when markChanged should next look at a lazy phase: just
+     * before it takes the step after shown, but after time.
+     */
+    private void lookAfter(Phase phase, double time)
+    {
+        double step = phase.period * timeScale;
+        double next = phase.start + (phase.shown - EARLY) * step;
+        phase.time = next > time ? next : Math.nextUp(time);
+    }
+
+    private Phase phaseAt(double time, long period)
+    {
+        Phase phase = find(time, period);
+        if (phase == null)
+        {
+            phase = free;
+            if (phase == null)
+            {
+                phase = new Phase();
+            }
+            else
+            {
+                free = phase.nextFree;
+                phase.nextFree = null;
+            }
+            phase.reset(time, period);
+            remember(phase);
+        }
+        return phase;
+    }
+
+    /**
+     * Keep an empty phase that is in neither the table nor due, for
+     * phaseAt to reuse.
+     */
+    private void recycle(Phase phase)
+    {
+        assert phase.size == 0;
+        phase.nextFree = free;
+        free = phase;
+    }
+
+    private Phase find(double time, long period)
+    {
+        long bits = Double.doubleToRawLongBits(time);
+        int mask = table.length - 1;
+        for (int slot = slotOf(bits, period); table[slot] != null;
+             slot = (slot + 1) & mask)
+        {
+            Phase phase = table[slot];
+            if (phase.period == period
+                && Double.doubleToRawLongBits(key(phase)) == bits)
+            {
+                return phase;
+            }
+        }
+        return null;
+    }
+
+    private void remember(Phase phase)
+    {
+        if (2 * (phases + 1) > table.length)
+        {
+            growTable();
+        }
+        insert(phase);
+        phases++;
+        if (!lazy)
+        {
+            due.add(phase);
+        }
+        else if (tracking)
+        {
+            lookAfter(phase, Double.NEGATIVE_INFINITY);
+            due.add(phase);
+        }
+    }
+
+    /**
+     * Take phase out of the table, shifting back any phase after it
+     * that would otherwise no longer be found.
+     */
+    private void forget(Phase phase)
+    {
+        int mask = table.length - 1;
+        int slot = slotOf(phase);
+        while (table[slot] != phase)
+        {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = null;
+        phases--;
+        for (int next = (slot + 1) & mask; table[next] != null;
+             next = (next + 1) & mask)
+        {
+            int home = slotOf(table[next]);
+            if (((next - home) & mask) >= ((next - slot) & mask))
+            {
+                table[slot] = table[next];
+                table[next] = null;
+                slot = next;
+            }
+        }
+    }
+
+    private void insert(Phase phase)
+    {
+        int mask = table.length - 1;
+        int slot = slotOf(phase);
+        while (table[slot] != null)
+        {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = phase;
+    }
+
+    private void growTable()
+    {
+        Phase[] old = table;
+        table = new Phase[old.length * 2];
+        tableBits++;
+        for (Phase phase : old)
+        {
+            if (phase != null)
+            {
+                insert(phase);
+            }
+        }
+    }
+
+    private int slotOf(Phase phase)
+    {
+        return slotOf(Double.doubleToRawLongBits(key(phase)), phase.period);
+    }
+
+    private int slotOf(long bits, long period)
+    {
+        long h = (bits ^ (period * 0x9e3779b97f4a7c15L)) * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> (64 - tableBits));
+    }
+
+    /**
+     * A lazy phase's time moves on, but its start doesn't.
+     */
+    private double key(Phase phase)
+    {
+        return lazy ? phase.start : phase.time;
+    }
+
+    private static void join(Phase phase, Entity entity)
+    {
+        if (phase.size == phase.members.length)
+        {
+            phase.members = Arrays.copyOf(phase.members, phase.size * 2);
+        }
+        entity.animationPhase = phase;
+        entity.animationSlot = phase.size;
+        phase.members[phase.size++] = entity;
+    }
+
+    private static void leave(Phase phase, int slot)
+    {
+        Entity last = phase.members[--phase.size];
+        phase.members[slot] = last;
+        last.animationSlot = slot;
+        phase.members[phase.size] = null;
+    }
+}
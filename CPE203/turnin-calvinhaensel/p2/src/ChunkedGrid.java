@@ -0,0 +1,219 @@
+import java.util.Arrays;
+import edu.calpoly.spritely.Tile;
+
+/**
+ * A WorldGrid cut into square chunks of CHUNK_SIZE cells a side, for
+ * worlds that are very large but mostly empty.  A chunk is only
+ * allocated when something is written to it, and even then only the
+ * parts that are needed:
+ *
+ *  - Until a cell's background is set to something other than the
+ *    grid's fill tile, the chunk's background is that one shared tile,
+ *    not an array.
+ *  - The occupant array and occupied bits are allocated for the first
+ *    occupant, and dropped again when the last one leaves.
+ *
+ * A chunk row is 64 cells, so its occupied bits are exactly one long.
+ */
+final class ChunkedGrid implements WorldGrid
+{
+    public static final int CHUNK_BITS = 6;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final class Chunk
+    {
+        Tile[] background;      // null while every cell has fillTile
+        Entity[] occupant;      // null while there are no occupants
+        long[] occupied;        // one word per row, with occupant
+        int occupants;
+    }
+
+    private final int width;
+    private final int columns;
+    private final Chunk[] chunks;
+    private Tile fillTile;
+
+    public ChunkedGrid(int width, int height)
+    {
+        this.width = width;
+        this.columns = (width + CHUNK_MASK) >>> CHUNK_BITS;
+        int rows = (height + CHUNK_MASK) >>> CHUNK_BITS;
+        this.chunks = new Chunk[columns * rows];
+        this.fillTile = null;
+    }
+
+    /**
+     * @return how many chunks have been allocated, for seeing how much
+     *         of the grid is in use.
+     */
+    public int allocatedChunks()
+    {
+        int count = 0;
+        for (Chunk chunk : chunks)
+        {
+            if (chunk != null)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public Tile getBackground(int cell)
+    {
+        Chunk chunk = chunks[chunkOf(cell)];
+        if (chunk == null || chunk.background == null)
+        {
+            return fillTile;
+        }
+        return chunk.background[indexInChunk(cell)];
+    }
+
+    @Override
+    public void setBackground(int cell, Tile tile)
+    {
+        int c = chunkOf(cell);
+        Chunk chunk = chunks[c];
+        if (chunk == null || chunk.background == null)
+        {
+            if (tile == fillTile)
+            {
+                return;
+            }
+            chunk = chunk(c);
+            chunk.background = new Tile[CHUNK_SIZE * CHUNK_SIZE];
+            Arrays.fill(chunk.background, fillTile);
+        }
+        chunk.background[indexInChunk(cell)] = tile;
+    }
+
+    @Override
+    public void fillBackground(Tile tile)
+    {
+        fillTile = tile;
+        for (Chunk chunk : chunks)
+        {
+            if (chunk != null)
+            {
+                chunk.background = null;
+            }
+        }
+    }
+
+    @Override
+    public Entity getOccupant(int cell)
+    {
+        Chunk chunk = chunks[chunkOf(cell)];
+        if (chunk == null || chunk.occupant == null)
+        {
+            return null;
+        }
+        return chunk.occupant[indexInChunk(cell)];
+    }
+
+    @Override
+    public void setOccupant(int cell, Entity entity)
+    {
+        int c = chunkOf(cell);
+        Chunk chunk = chunks[c];
+        if (chunk == null || chunk.occupant == null)
+        {
+            if (entity == null)
+            {
+                return;
+            }
+            chunk = chunk(c);
+            chunk.occupant = new Entity[CHUNK_SIZE * CHUNK_SIZE];
+            chunk.occupied = new long[CHUNK_SIZE];
+        }
+
+        int i = indexInChunk(cell);
+        int row = i >>> CHUNK_BITS;
+        long bit = 1L << i;
+        boolean was = chunk.occupant[i] != null;
+        chunk.occupant[i] = entity;
+        if (entity != null)
+        {
+            chunk.occupied[row] |= bit;
+            if (!was)
+            {
+                chunk.occupants++;
+            }
+        }
+        else if (was)
+        {
+            chunk.occupied[row] &= ~bit;
+            if (--chunk.occupants == 0)
+            {
+                chunk.occupant = null;
+                chunk.occupied = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isOccupied(int cell)
+    {
+        Chunk chunk = chunks[chunkOf(cell)];
+        if (chunk == null || chunk.occupied == null)
+        {
+            return false;
+        }
+        int i = indexInChunk(cell);
+        return (chunk.occupied[i >>> CHUNK_BITS] & (1L << i)) != 0;
+    }
+
+    @Override
+    public long occupiedRow(int x, int y)
+    {
+        // the run covers the rest of this chunk's row, then the start of
+        // the next chunk's; cells past the grid are never occupied
+        int column = x >>> CHUNK_BITS;
+        int shift = x & CHUNK_MASK;
+        int base = (y >>> CHUNK_BITS) * columns;
+        int row = y & CHUNK_MASK;
+        long bits = rowBits(base + column, row) >>> shift;
+        if (shift != 0 && column + 1 < columns)
+        {
+            bits |= rowBits(base + column + 1, row) << (CHUNK_SIZE - shift);
+        }
+        return bits;
+    }
+
+    private long rowBits(int c, int row)
+    {
+        Chunk chunk = chunks[c];
+        if (chunk == null || chunk.occupied == null)
+        {
+            return 0;
+        }
+        return chunk.occupied[row];
+    }
+
+    private Chunk chunk(int c)
+    {
+        Chunk chunk = chunks[c];
+        if (chunk == null)
+        {
+            chunk = new Chunk();
+            chunks[c] = chunk;
+        }
+        return chunk;
+    }
+
+    private int chunkOf(int cell)
+    {
+        int x = cell % width;
+        int y = cell / width;
+        return (y >>> CHUNK_BITS) * columns + (x >>> CHUNK_BITS);
+    }
+
+    private int indexInChunk(int cell)
+    {
+        int x = cell % width;
+        int y = cell / width;
+        return ((y & CHUNK_MASK) << CHUNK_BITS) | (x & CHUNK_MASK);
+    }
+}
@@ -0,0 +1,410 @@
+import java.util.Arrays;
+
+/**
+ * For every cell of a WorldModel, how many steps it is to the nearest
+ * entity of one kind, which of them that is, and so which way to step
+ * to get there.  It is meant for kinds that never move, such as
+ * blacksmiths, so that all the miners heading for one can share it
+ * instead of each searching on its own.
+ *
+ * Only entities that never move are treated as being in the way;
+ * miners, ore and the like come and go too often to be worth keeping
+ * the field up to date for, so anyone following the field has to check
+ * the step it gives is actually free.  When a blocker goes away the
+ * field is patched by relaxing outward from the freed cell.  Anything
+ * else (a new blocker, or a goal going away) can only make distances
+ * longer, which can't be patched locally, so the field is just marked
+ * stale and rebuilt the next time it is used.
+ *
+ * The field only reaches MAX_DISTANCE steps out from the goals.  Beyond
+ * that, nearest gives null just as it does for a cell walled off from
+ * every goal, and movers fall back on findNearest and the PathFinder.
+ * The field is kept in square pages that are made the first time it
+ * reaches them, so it costs what lies near the goals rather than the
+ * grid's area.
+ */
+final class DistanceField
+{
+    /**
+     * Distance from a cell nothing can be reached from.
+     */
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    /**
+     * How many steps out from a goal the field reaches.
+     */
+    public static final int MAX_DISTANCE = 256;
+
+    /**
+     * Pages are PAGE_SIZE cells square, and a page holds its cells in
+     * row-major order.
+     */
+    public static final int PAGE_SIZE = 64;
+    public static final int PAGE_CELLS = PAGE_SIZE * PAGE_SIZE;
+    private static final int PAGE_BITS = 6;
+
+    // neighbour offsets, in the same order PathFinder uses
+    private static final int[] DX = { -1, 1, 0, 0 };
+    private static final int[] DY = { 0, 0, -1, 1 };
+
+    private final WorldModel world;
+    private final EntityKind goalKind;
+    private final int width;
+    private final int height;
+    private final int pageColumns;
+    private final int pageRows;
+
+    // the page tables are allocated the first time the field is built,
+    // and a page when the field first reaches it; the queue when it is
+    // first needed
+    private int[][] distance;
+    private Entity[][] nearest;
+    private int[] queue;
+    private boolean stale;
+
+    public DistanceField(WorldModel world, EntityKind goalKind)
+    {
+        this.world = world;
+        this.goalKind = goalKind;
+        this.width = world.size.width;
+        this.height = world.size.height;
+        this.pageColumns = (width + PAGE_SIZE - 1) >>> PAGE_BITS;
+        this.pageRows = (height + PAGE_SIZE - 1) >>> PAGE_BITS;
+        this.stale = true;
+    }
+
+    /**
+     * Whether an entity of the given kind never moves, and so is kept
+     * out of the field's paths.
+     */
+    public static boolean isFixed(EntityKind kind)
+    {
+        switch (kind)
+        {
+        case BLACKSMITH:
+        case OBSTACLE:
+        case VEIN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the goal nearest to pos, going around fixed entities, or
+     *         null if none can be reached within MAX_DISTANCE.
+     */
+    public Entity nearest(Point pos)
+    {
+        update();
+        return nearestOf(pos.getX(), pos.getY());
+    }
+
+    /**
+     * @return the number of steps from pos to a cell next to the
+     *         nearest goal, or UNREACHABLE.
+     */
+    public int distance(Point pos)
+    {
+        update();
+        int d = distanceOf(pos.getX(), pos.getY());
+        return d == UNREACHABLE ? d : d - 1;
+    }
+
+    /**
+     * Find the cell next to the given one that is one step closer to the
+     * goal nearest to it.  It may be occupied by something that moves.
+     *
+     * @return the next cell, or the same cell if it is already next to
+     *         its goal or no goal can be reached.
+     */
+    public int nextStep(int cell)
+    {
+        update();
+        int x = cell % width;
+        int y = cell / width;
+        int d = distanceOf(x, y);
+        if (d == UNREACHABLE || d <= 1)
+        {
+            return cell;
+        }
+
+        Entity goal = nearestOf(x, y);
+        for (int i = 0; i < DX.length; i++)
+        {
+            int nx = x + DX[i];
+            int ny = y + DY[i];
+            if (nx < 0 || nx >= width || ny < 0 || ny >= height)
+            {
+                continue;
+            }
+            if (distanceOf(nx, ny) == d - 1 && nearestOf(nx, ny) == goal)
+            {
+                return ny * width + nx;
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Tell the field an entity has been put in the world.
+     */
+    public void entityAdded(Entity entity)
+    {
+        if (stale)
+        {
+            return;
+        }
+        if (entity.kind == goalKind)
+        {
+            // a new goal can only bring things closer
+            int x = entity.position.getX();
+            int y = entity.position.getY();
+            set(x, y, 0, entity);
+            relax(enqueue(0, y * width + x));
+        }
+        else if (isFixed(entity.kind))
+        {
+            stale = true;
+        }
+    }
+
+    /**
+     * Tell the field an entity has been taken out of the world at pos.
+     */
+    public void entityRemoved(Entity entity, Point pos)
+    {
+        if (stale)
+        {
+            return;
+        }
+        if (entity.kind == goalKind)
+        {
+            stale = true;
+        }
+        else if (isFixed(entity.kind))
+        {
+            // the cell is open now; take the best of its neighbours and
+            // pass on anything it improves
+            int x = pos.getX();
+            int y = pos.getY();
+            int best = distanceOf(x, y);
+            Entity goal = nearestOf(x, y);
+            for (int i = 0; i < DX.length; i++)
+            {
+                int nx = x + DX[i];
+                int ny = y + DY[i];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height)
+                {
+                    continue;
+                }
+                int d = distanceOf(nx, ny);
+                if (d < MAX_DISTANCE && d + 1 < best)
+                {
+                    best = d + 1;
+                    goal = nearestOf(nx, ny);
+                }
+            }
+            if (best != distanceOf(x, y))
+            {
+                set(x, y, best, goal);
+                relax(enqueue(0, y * width + x));
+            }
+        }
+    }
+
+    /**
+     * Throw the field away, to be rebuilt when next used.  Cheaper than
+     * telling it about entities one at a time when many are added at
+     * once.
+     */
+    public void invalidate()
+    {
+        stale = true;
+    }
+
+    /*
+     * Access to the raw field, for Snapshot.  A raw distance is to the
+     * goal's own cell, one more than distance() gives.  Pages are
+     * numbered row-major across the grid, and a page the field hasn't
+     * reached is null.
+     */
+
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    public int pageCount()
+    {
+        return pageColumns * pageRows;
+    }
+
+    public int[] distancePage(int page)
+    {
+        return distance == null ? null : distance[page];
+    }
+
+    public Entity[] nearestPage(int page)
+    {
+        return nearest == null ? null : nearest[page];
+    }
+
+    /**
+     * Put back a field saved with distancePage and nearestPage.
+     */
+    public void restore(int[][] distance, Entity[][] nearest)
+    {
+        assert distance.length == pageCount();
+        this.distance = distance;
+        this.nearest = nearest;
+        this.stale = false;
+    }
+
+    private void update()
+    {
+        if (stale)
+        {
+            rebuild();
+        }
+    }
+
+    /**
+     * Breadth-first search from every goal at once.
+     */
+    private void rebuild()
+    {
+        if (distance == null)
+        {
+            distance = new int[pageCount()][];
+            nearest = new Entity[pageCount()][];
+        }
+        for (int page = 0; page < distance.length; page++)
+        {
+            if (distance[page] != null)
+            {
+                Arrays.fill(distance[page], UNREACHABLE);
+                Arrays.fill(nearest[page], null);
+            }
+        }
+
+        // the goals, from the store rather than a pass over the grid,
+        // and in row-major order so ties go the same way on every
+        // rebuild
+        EntityStore store = world.store;
+        int wanted = goalKind.ordinal();
+        int tail = 0;
+        for (int id = 0; id < store.limit(); id++)
+        {
+            if (store.kind[id] == wanted)
+            {
+                tail = enqueue(tail, store.y[id] * width + store.x[id]);
+            }
+        }
+        Arrays.sort(queue, 0, tail);
+        for (int i = 0; i < tail; i++)
+        {
+            int cell = queue[i];
+            set(cell % width, cell / width, 0, world.getOccupant(cell));
+        }
+        relax(tail);
+        stale = false;
+    }
+
+    /**
+     * Spread distances outward from the cells in queue[0..tail), which
+     * must already be in order of distance, as far as MAX_DISTANCE.
+     * Every step costs the same, so a FIFO queue visits cells in order
+     * and each is final the first time it is lowered.
+     */
+    private void relax(int tail)
+    {
+        int head = 0;
+        while (head < tail)
+        {
+            int cell = queue[head++];
+            int x = cell % width;
+            int y = cell / width;
+            int d = distanceOf(x, y) + 1;
+            if (d > MAX_DISTANCE)
+            {
+                continue;
+            }
+            Entity goal = nearestOf(x, y);
+            for (int i = 0; i < DX.length; i++)
+            {
+                int nx = x + DX[i];
+                int ny = y + DY[i];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height)
+                {
+                    continue;
+                }
+                if (d < distanceOf(nx, ny) && !isBlocked(nx, ny))
+                {
+                    set(nx, ny, d, goal);
+                    tail = enqueue(tail, ny * width + nx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Put cell at queue[tail], growing the queue if need be.
+     *
+     * @return the new tail.
+     */
+    private int enqueue(int tail, int cell)
+    {
+        if (queue == null)
+        {
+            queue = new int[64];
+        }
+        else if (tail == queue.length)
+        {
+            queue = Arrays.copyOf(queue, tail * 2);
+        }
+        queue[tail] = cell;
+        return tail + 1;
+    }
+
+    private int distanceOf(int x, int y)
+    {
+        int[] page = distance[pageOf(x, y)];
+        return page == null ? UNREACHABLE : page[offsetOf(x, y)];
+    }
+
+    private Entity nearestOf(int x, int y)
+    {
+        Entity[] page = nearest[pageOf(x, y)];
+        return page == null ? null : page[offsetOf(x, y)];
+    }
+
+    private void set(int x, int y, int d, Entity goal)
+    {
+        int page = pageOf(x, y);
+        if (distance[page] == null)
+        {
+            distance[page] = new int[PAGE_CELLS];
+            Arrays.fill(distance[page], UNREACHABLE);
+            nearest[page] = new Entity[PAGE_CELLS];
+        }
+        distance[page][offsetOf(x, y)] = d;
+        nearest[page][offsetOf(x, y)] = goal;
+    }
+
+    private int pageOf(int x, int y)
+    {
+        return (y >>> PAGE_BITS) * pageColumns + (x >>> PAGE_BITS);
+    }
+
+    private static int offsetOf(int x, int y)
+    {
+        return ((y & (PAGE_SIZE - 1)) << PAGE_BITS) | (x & (PAGE_SIZE - 1));
+    }
+
+    private boolean isBlocked(int x, int y)
+    {
+        Entity occupant = world.getOccupant(world.cellOf(x, y));
+        return occupant != null && isFixed(occupant.kind);
+    }
+}
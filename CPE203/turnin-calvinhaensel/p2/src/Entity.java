@@ -1,6 +1,5 @@
 import java.util.List;
 import edu.calpoly.spritely.Tile;
-import java.util.Random;
 
 /**
  * An entity in our virtual world.  An entity occupies a square
@@ -17,7 +16,31 @@ final class Entity
     public int resourceCount;
     public int actionPeriod;
     public int animationPeriod;
-    public static final Random rand = new Random();
+
+    // The actions this entity's events run, reused from one event to
+    // the next, and the head of its list of pending events
+    private Action activityAction;
+    private Action animationAction;
+    public Event pendingEvents;
+
+    // Where this entity's animation is, when an AnimationClock runs it
+    // rather than events, and the repeatCount its next step runs with
+    public AnimationClock.Phase animationPhase;
+    public int animationSlot;
+    public int animationRepeat;
+
+    // With a lazy AnimationClock: when the first step of the animation
+    // is due, and the game time between steps, or 0 if the tile isn't
+    // worked out lazily.  tileIndex is then the index before the first
+    // step, and animationRepeat counts from there.
+    public double animationStart;
+    public double animationStep;
+
+    // The path this entity is following, if it moves; see PathFinder
+    public Path path;
+
+    // This entity's slot in its world's EntityStore
+    public int id = EntityStore.NO_ENTITY;
 
     public Entity(EntityKind kind, Point position,
                   List<Tile> tiles, int resourceLimit, int resourceCount,
@@ -33,84 +56,117 @@ final class Entity
         this.animationPeriod = animationPeriod;
     }
 
-    public Action createAnimationAction(Entity entity, int repeatCount)
+    /**
+     * Get the animation action for the given entity.  Each entity has
+     * only one, reused each time, since it only ever has one animation
+     * event pending.
+     */
+    public Action createAnimationAction(Entity entity, WorldModel world,
+                                        int repeatCount)
     {
-        return new Action(ActionKind.ANIMATION, entity, null, repeatCount);
+        Action action = entity.animationAction;
+        if (action == null)
+        {
+            action = new Action(ActionKind.ANIMATION, entity, world,
+                                repeatCount);
+            entity.animationAction = action;
+        }
+        action.world = world;
+        action.repeatCount = repeatCount;
+        return action;
     }
 
+    /**
+     * Get the activity action for the given entity.  Like the animation
+     * action, there is only one per entity.
+     */
     public Action createActivityAction(Entity entity, WorldModel world)
     {
-        return new Action(ActionKind.ACTIVITY, entity, world, 0);
+        Action action = entity.activityAction;
+        if (action == null)
+        {
+            action = new Action(ActionKind.ACTIVITY, entity, world, 0);
+            entity.activityAction = action;
+        }
+        action.world = world;
+        return action;
     }
 
-    public static Entity createBlacksmith(Point position)
+    public static Entity createBlacksmith(WorldAssets assets, Point position)
     {
         return new Entity(EntityKind.BLACKSMITH, position,
-                          VirtualWorld.blacksmithTiles, 0, 0, 0, 0);
+                          assets.blacksmithTiles, 0, 0, 0, 0);
     }
 
     public static Entity
-    createMinerFull(int resourceLimit, Point position,
+    createMinerFull(WorldAssets assets, int resourceLimit, Point position,
                     int actionPeriod, int animationPeriod)
     {
         return new Entity(EntityKind.MINER_FULL, position,
-                          VirtualWorld.minerFullTiles,
+                          assets.minerFullTiles,
                           resourceLimit, resourceLimit, actionPeriod,
                           animationPeriod);
     }
 
     public static Entity
-    createMinerNotFull(int resourceLimit, Point position, int actionPeriod,
-                       int animationPeriod)
+    createMinerNotFull(WorldAssets assets, int resourceLimit, Point position,
+                       int actionPeriod, int animationPeriod)
     {
         return new Entity(EntityKind.MINER_NOT_FULL, position,
-                          VirtualWorld.minerTiles,
+                          assets.minerTiles,
                           resourceLimit, 0, actionPeriod, animationPeriod);
     }
 
     public static Entity
-    createObstacle(Point position)
+    createObstacle(WorldAssets assets, Point position)
     {
         return new Entity(EntityKind.OBSTACLE, position,
-                          VirtualWorld.obstacleTiles, 0, 0, 0, 0);
+                          assets.obstacleTiles, 0, 0, 0, 0);
     }
 
     public static Entity
-    createOre(Point position, int actionPeriod)
+    createOre(WorldAssets assets, Point position, int actionPeriod)
     {
         return new Entity(EntityKind.ORE, position,
-                          VirtualWorld.oreTiles, 0, 0, actionPeriod, 0);
+                          assets.oreTiles, 0, 0, actionPeriod, 0);
     }
 
     public static Entity
-    createOreBlob(Point position, int actionPeriod, int animationPeriod)
+    createOreBlob(WorldAssets assets, Point position, int actionPeriod,
+                  int animationPeriod)
     {
         
         return new Entity(EntityKind.ORE_BLOB, position,
-                          VirtualWorld.blobTiles,
+                          assets.blobTiles,
                           0, 0, actionPeriod, animationPeriod);
        
     }
 
-    public static Entity createQuake(Point position)
+    public static Entity createQuake(WorldAssets assets, Point position)
     {
      
         return new Entity(EntityKind.QUAKE, position,
-                          VirtualWorld.quakeTiles, 0, 0, 1100, 100);
+                          assets.quakeTiles, 0, 0, 1100, 100);
     }
 
-    public static Entity createVein(Point position, int actionPeriod)
+    public static Entity createVein(WorldAssets assets, Point position,
+                                    int actionPeriod)
     {
         return new Entity(EntityKind.VEIN, position,
-                          VirtualWorld.veinTiles, 0, 0, actionPeriod, 0);
+                          assets.veinTiles, 0, 0, actionPeriod, 0);
     }
 
     public void
     executeMinerFullActivity(Entity entity, WorldModel world,
                              EventSchedule eventSchedule)
     {
-        Entity fullTarget
-            = world.findNearest(position, EntityKind.BLACKSMITH);
+        Entity fullTarget = world.blacksmithField.nearest(position);
+        if (fullTarget == null)
+        {
+            // walled off from every blacksmith, or out of the field's
+            // reach; head for the closest anyway
+            fullTarget = world.findNearest(position, EntityKind.BLACKSMITH);
+        }
 
         if (fullTarget != null  &&
             moveToFull(this, world, fullTarget, eventSchedule))
@@ -151,8 +207,9 @@ final class Entity
         world.removeEntity(entity);
         eventSchedule.unscheduleAllEvents(entity);
 
-        Entity blob = createOreBlob(pos, entity.actionPeriod / 4,
-                                    50 + rand.nextInt(100));
+        Entity blob = createOreBlob(world.assets, pos,
+                                    entity.actionPeriod / 4,
+                                    50 + world.random.nextInt(100));
 
         world.addEntity(blob);
         scheduleActions(blob, eventSchedule, world);
@@ -172,7 +229,7 @@ final class Entity
 
             if (moveToOreBlob(entity, world, blobTarget, eventSchedule))
             {
-                Entity quake = createQuake(tgtPos);
+                Entity quake = createQuake(world.assets, tgtPos);
 
                 world.addEntity(quake);
                 nextPeriod += entity.actionPeriod;
@@ -200,7 +257,8 @@ final class Entity
         Point openPt = world.findOpenAround(entity.position);
 
         if (openPt != null) {
-            Entity ore = createOre(openPt, 20000 + rand.nextInt(10000));
+            Entity ore = createOre(world.assets, openPt,
+                                   20000 + world.random.nextInt(10000));
             world.addEntity(ore);
             scheduleActions(ore, eventSchedule, world);
         }
@@ -220,16 +278,14 @@ final class Entity
             eventSchedule.scheduleEvent(entity,
                 createActivityAction(entity, world),
                 actionPeriod);
-            eventSchedule.scheduleEvent(entity, createAnimationAction(entity, 0),
-                getAnimationPeriod());
+            eventSchedule.scheduleAnimation(entity, world, 0);
             break;
 
         case MINER_NOT_FULL:
             eventSchedule.scheduleEvent(entity,
                 createActivityAction(entity, world),
                 actionPeriod);
-            eventSchedule.scheduleEvent(entity,
-                createAnimationAction(entity, 0), getAnimationPeriod());
+            eventSchedule.scheduleAnimation(entity, world, 0);
             break;
 
         case ORE:
@@ -242,17 +298,14 @@ final class Entity
             eventSchedule.scheduleEvent(entity,
                 createActivityAction(entity, world),
                 actionPeriod);
-            eventSchedule.scheduleEvent(entity,
-                entity.createAnimationAction(entity, 0), entity.getAnimationPeriod());
+            eventSchedule.scheduleAnimation(entity, world, 0);
             break;
 
         case QUAKE:
             eventSchedule.scheduleEvent(entity,
                 createActivityAction(entity, world),
                 actionPeriod);
-            eventSchedule.scheduleEvent(entity,
-                entity.createAnimationAction(entity, 10),
-                entity.getAnimationPeriod());
+            eventSchedule.scheduleAnimation(entity, world, 10);
             break;
 
         case VEIN:
@@ -271,8 +324,9 @@ final class Entity
     {
         if (entity.resourceCount >= entity.resourceLimit)
         {
-            Entity miner = createMinerFull(entity.resourceLimit,
-                entity.position, entity.actionPeriod, entity.animationPeriod);
+            Entity miner = createMinerFull(world.assets,
+                entity.resourceLimit, entity.position, entity.actionPeriod,
+                entity.animationPeriod);
 
             world.removeEntity(entity);
             eventSchedule.unscheduleAllEvents(entity);
@@ -289,7 +343,7 @@ final class Entity
     private void
     transformFull(Entity entity, WorldModel world, EventSchedule eventSchedule)
     {
-        Entity miner = createMinerNotFull(resourceLimit,
+        Entity miner = createMinerNotFull(world.assets, resourceLimit,
             position, actionPeriod, animationPeriod);
 
         world.removeEntity(entity);
@@ -306,6 +360,7 @@ final class Entity
         if (position.adjacent(miner.position, target.position))
         {
             miner.resourceCount += 1;
+            world.updateEntity(miner);
             world.removeEntity(target);
             eventSchedule.unscheduleAllEvents(target);
 
@@ -313,11 +368,13 @@ final class Entity
         }
         else
         {
-            Point nextPos = nextPositionMiner(miner, world, target.position);
+            int here = world.cellOf(miner.position);
+            int next = world.pathFinder.nextStep(miner, target,
+                PathFinder.Passability.EMPTY);
 
-            if (!miner.position.equals(nextPos))
+            if (next != here)
             {
-                world.moveEntity(miner, nextPos);
+                world.moveEntity(miner, next);
             }
             return false;
         }
@@ -333,11 +390,23 @@ final class Entity
         }
         else
         {
-            Point nextPos = nextPositionMiner(miner, world, target.position);
+            // follow the shared blacksmith field, and only search for a
+            // way around when something that moves is in the way
+            int here = world.cellOf(miner.position);
+            int next = here;
+            if (world.blacksmithField.nearest(miner.position) == target)
+            {
+                next = world.blacksmithField.nextStep(here);
+            }
+            if (next == here || world.isOccupied(next))
+            {
+                next = world.pathFinder.nextStep(miner, target,
+                    PathFinder.Passability.EMPTY);
+            }
 
-            if (!miner.position.equals(nextPos))
+            if (next != here)
             {
-                world.moveEntity(miner, nextPos);
+                world.moveEntity(miner, next);
             }
             return false;
         }
@@ -355,72 +424,24 @@ final class Entity
         }
         else
         {
-            Point nextPos = nextPositionOreBlob(world, target.position);
+            int here = world.cellOf(blob.position);
+            int next = world.pathFinder.nextStep(blob, target,
+                PathFinder.Passability.EMPTY_OR_ORE);
 
-            if (!blob.position.equals(nextPos))
+            if (next != here)
             {
-                Entity occupant = world.getOccupant(nextPos);
+                Entity occupant = world.getOccupant(next);
                 if (occupant != null)
                 {
                     eventSchedule.unscheduleAllEvents(occupant);
                 }
 
-                world.moveEntity(blob, nextPos);
+                world.moveEntity(blob, next);
             }
             return false;
         }
     }
 
-    private Point
-    nextPositionMiner(Entity entity, WorldModel world, Point destPos)
-    {
-        int horiz = Integer.signum(destPos.getX() - entity.position.getX());
-        Point newPos = new Point(entity.position.getX() + horiz,
-            entity.position.getY());
-
-        if (horiz == 0 || world.isOccupied(newPos))
-        {
-            int vert = Integer.signum(destPos.getY() - entity.position.getY());
-            newPos = new Point(entity.position.getX(),
-                entity.position.getY() + vert);
-
-            if (vert == 0 || world.isOccupied(newPos))
-            {
-                newPos = entity.position;
-            }
-        }
-
-        return newPos;
-    }
-
-    private Point
-    nextPositionOreBlob(WorldModel world, Point destPos)
-    {
-        int horiz = Integer.signum(destPos.getX() - this.position.getX());
-        Point newPos = new Point(this.position.getX() + horiz,
-            this.position.getY());
-
-        Entity occupant = world.getOccupant(newPos);
-
-        if (horiz == 0 ||
-            (occupant != null && !(occupant.kind == EntityKind.ORE)))
-        {
-            int vert = Integer.signum(destPos.getY() - this.position.getY());
-            newPos = new Point(this.position.getX(),
-                               this.position.getY() + vert);
-            occupant = world.getOccupant(newPos);
-
-            if (vert == 0 ||
-                (occupant != null && !(occupant.kind == EntityKind.ORE)))
-            {
-                newPos = position;
-            }
-        }
-
-        return newPos;
-    }
-
-
     public int getAnimationPeriod()
     {
         switch (kind)
@@ -442,9 +463,32 @@ final class Entity
         tileIndex = (tileIndex + 1) % tiles.size();
     }
 
-    public Tile getCurrentTile()
+    /**
+     * The tile to draw at the given game time.  This is the one at
+     * tileIndex, unless a lazy AnimationClock is animating this
+     * entity, in which case it is worked out from when the animation
+     * started: as many steps on as are due by time, or repeatCount
+     * steps if that is fewer.  At the instant a step is due, rounding
+     * may put this a step behind what events would have shown.
+     */
+    public Tile getCurrentTile(double time)
     {
-        return tiles.get(tileIndex);
+        return tiles.get(tileIndexAt(time));
+    }
+
+    public int tileIndexAt(double time)
+    {
+        if (animationStep == 0.0 || time < animationStart)
+        {
+            return tileIndex;
+        }
+        long steps = AnimationClock.stepsAt(animationStart, animationStep,
+                                            time);
+        if (animationRepeat > 0)
+        {
+            steps = Math.min(steps, animationRepeat);
+        }
+        return (int) ((tileIndex + steps) % tiles.size());
     }
 
 
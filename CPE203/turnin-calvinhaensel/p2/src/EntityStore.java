@@ -0,0 +1,240 @@
+import java.util.Arrays;
+
+/**
+ * The entities of a WorldModel laid out as parallel arrays of
+ * primitives, one slot per entity, so that code which looks at every
+ * entity can sweep through memory in order instead of following a
+ * pointer to each one.  A slot's index is its entity's id; ids are
+ * dense, and those of removed entities are handed out again.
+ *
+ * Entity is still the real thing, and the store is a copy of its
+ * primitive fields that WorldModel keeps in step.  Positions are copied
+ * as entities move; resourceCount and tileIndex, the fields that change
+ * in place, are copied by WorldModel.updateEntity.  isInStep checks a
+ * slot, for asserts.
+ */
+final class EntityStore
+{
+    /**
+     * The id of an entity that isn't in a store.
+     */
+    public static final int NO_ENTITY = -1;
+
+    /**
+     * The kind ordinal stored in a free slot.
+     */
+    public static final int FREE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /*
+     * The slots.  They are public for fast reading; only the store
+     * writes to them.  Slots at limit() and above are unused.
+     */
+    public int[] kind;
+    public int[] x;
+    public int[] y;
+    public int[] resourceCount;
+    public int[] resourceLimit;
+    public int[] actionPeriod;
+    public int[] tileIndex;
+    public Entity[] entity;
+
+    private int limit;
+    private int size;
+    private int[] freeIds;
+    private int freeCount;
+
+    public EntityStore()
+    {
+        this.kind = new int[INITIAL_CAPACITY];
+        Arrays.fill(kind, FREE);
+        this.x = new int[INITIAL_CAPACITY];
+        this.y = new int[INITIAL_CAPACITY];
+        this.resourceCount = new int[INITIAL_CAPACITY];
+        this.resourceLimit = new int[INITIAL_CAPACITY];
+        this.actionPeriod = new int[INITIAL_CAPACITY];
+        this.tileIndex = new int[INITIAL_CAPACITY];
+        this.entity = new Entity[INITIAL_CAPACITY];
+        this.limit = 0;
+        this.size = 0;
+        this.freeIds = new int[16];
+        this.freeCount = 0;
+    }
+
+    /**
+     * @return the number of entities in the store.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return one more than the highest id in use; a sweep over the
+     *         store need only look at slots below this, skipping free
+     *         ones.
+     */
+    public int limit()
+    {
+        return limit;
+    }
+
+    public boolean isLive(int id)
+    {
+        return kind[id] != FREE;
+    }
+
+    /**
+     * Put an entity in the store, reusing the most recently freed slot
+     * if there is one.
+     *
+     * @return the entity's new id.
+     */
+    public int add(Entity e)
+    {
+        int id;
+        if (freeCount > 0)
+        {
+            id = freeIds[--freeCount];
+        }
+        else
+        {
+            if (limit == kind.length)
+            {
+                grow(kind.length * 2);
+            }
+            id = limit++;
+        }
+
+        kind[id] = e.kind.ordinal();
+        x[id] = e.position.getX();
+        y[id] = e.position.getY();
+        resourceLimit[id] = e.resourceLimit;
+        actionPeriod[id] = e.actionPeriod;
+        entity[id] = e;
+        update(id);
+        size++;
+        return id;
+    }
+
+    /**
+     * Make room for count more entities without growing again, so a
+     * big batch of adds copies the slots at most once.
+     */
+    public void reserve(int count)
+    {
+        long needed = (long) limit + count;
+        if (needed > kind.length)
+        {
+            grow((int) Math.min(Math.max(needed, 2L * kind.length),
+                                Integer.MAX_VALUE - 8));
+        }
+    }
+
+    public void remove(int id)
+    {
+        kind[id] = FREE;
+        entity[id] = null;
+        if (freeCount == freeIds.length)
+        {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    public void setPosition(int id, int newX, int newY)
+    {
+        x[id] = newX;
+        y[id] = newY;
+    }
+
+    /**
+     * Copy the fields that change in place from a slot's entity.
+     */
+    public void update(int id)
+    {
+        Entity e = entity[id];
+        resourceCount[id] = e.resourceCount;
+        tileIndex[id] = e.tileIndex;
+    }
+
+    /**
+     * @return whether a live slot still matches its entity.
+     */
+    public boolean isInStep(int id)
+    {
+        Entity e = entity[id];
+        return kind[id] == e.kind.ordinal()
+            && x[id] == e.position.getX()
+            && y[id] == e.position.getY()
+            && resourceCount[id] == e.resourceCount
+            && resourceLimit[id] == e.resourceLimit
+            && actionPeriod[id] == e.actionPeriod
+            && tileIndex[id] == e.tileIndex;
+    }
+
+    /**
+     * Count the entities of each kind.
+     *
+     * @param counts  indexed by EntityKind ordinal; it is added to, not
+     *                cleared first.
+     */
+    public void countByKind(int[] counts)
+    {
+        for (int id = 0; id < limit; id++)
+        {
+            int k = kind[id];
+            if (k != FREE)
+            {
+                assert isInStep(id);
+                counts[k]++;
+            }
+        }
+    }
+
+    /**
+     * @return the total resourceCount of the entities of one kind.
+     */
+    public long totalResources(EntityKind k)
+    {
+        return total(resourceCount, k);
+    }
+
+    /**
+     * @return the total resourceLimit of the entities of one kind.
+     */
+    public long totalCapacity(EntityKind k)
+    {
+        return total(resourceLimit, k);
+    }
+
+    private long total(int[] column, EntityKind k)
+    {
+        int wanted = k.ordinal();
+        long total = 0;
+        for (int id = 0; id < limit; id++)
+        {
+            if (kind[id] == wanted)
+            {
+                assert isInStep(id);
+                total += column[id];
+            }
+        }
+        return total;
+    }
+
+    private void grow(int capacity)
+    {
+        kind = Arrays.copyOf(kind, capacity);
+        Arrays.fill(kind, limit, capacity, FREE);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        resourceCount = Arrays.copyOf(resourceCount, capacity);
+        resourceLimit = Arrays.copyOf(resourceLimit, capacity);
+        actionPeriod = Arrays.copyOf(actionPeriod, capacity);
+        tileIndex = Arrays.copyOf(tileIndex, capacity);
+        entity = Arrays.copyOf(entity, capacity);
+    }
+}
@@ -1,23 +1,36 @@
 
 /**
  * A timed event in the virtual world.  Events are queued, and then
- * executed when their time arrives.
+ * executed when their time arrives.  EventSchedule recycles events
+ * once they have run or been cancelled, so don't hold on to one.
  */
 final class Event
 {
     public Action action;
     public double time;
-    public Object target;
+    public Entity target;
+    public long sequence;	// Order of scheduling, used to break ties
+    public int heapIndex;	// Slot in the EventHeap, or -1 if not queued
+    public int wheelSlot;	// Slot in the TimingWheel, or -1 if not queued
+    public int bucketIndex;	// Place in that slot's EventBucket, or -1
+    public boolean cancelled;	// Set by EventSchedule.unscheduleAllEvents
 
-    public Event(Action action, double time, Object target)
+    // Links in the target's list of pending events, or in the free list
+    public Event nextPending;
+    public Event prevPending;
+
+    public Event(Action action, double time, Entity target)
     {
         this.action = action;
         this.time = time;
         this.target = target;
+        this.heapIndex = -1;
+        this.wheelSlot = -1;
+        this.bucketIndex = -1;
     }
 
     public Action getAction(){return  action;}
     public double getTime(){return time;}
-    // public Entity getEntity(){return entity;}
+    public Entity getEntity(){return target;}
 
 }
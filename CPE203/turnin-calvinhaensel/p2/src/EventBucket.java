@@ -0,0 +1,198 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A growable array of events, used for the slots of a TimingWheel.
+ * Unlike an ArrayList, it can be sorted without allocating, given a
+ * scratch array to merge through.
+ *
+ * Each event records its place in the array in Event.bucketIndex, so
+ * removing one is O(1): its place is left empty, keeping the others in
+ * order, and empty places are squeezed out the next time the bucket is
+ * sorted.  The last place in use always holds an event.
+ */
+final class EventBucket
+{
+    private Event[] events;
+    private int limit;      // places in use, empty or not
+    private int size;       // events
+
+    public EventBucket()
+    {
+        this.events = new Event[8];
+        this.limit = 0;
+        this.size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return one more than the last place in use; see get.
+     */
+    public int limit()
+    {
+        return limit;
+    }
+
+    /**
+     * @param i  from 0 to limit() - 1.
+     * @return the event in place i, or null if it was removed.
+     */
+    public Event get(int i)
+    {
+        return events[i];
+    }
+
+    /**
+     * @return the event in the last place, or null if there are none.
+     */
+    public Event last()
+    {
+        return limit == 0 ? null : events[limit - 1];
+    }
+
+    public void add(Event event)
+    {
+        if (limit == events.length)
+        {
+            events = Arrays.copyOf(events, limit * 2);
+        }
+        event.bucketIndex = limit;
+        events[limit++] = event;
+        size++;
+    }
+
+    public Event removeLast()
+    {
+        Event last = events[--limit];
+        events[limit] = null;
+        last.bucketIndex = -1;
+        size--;
+        trim();
+        return last;
+    }
+
+    /**
+     * Remove the given event, keeping the others in order.
+     *
+     * @return true if the event was found and removed.
+     */
+    public boolean remove(Event event)
+    {
+        int i = event.bucketIndex;
+        if (i < 0 || i >= limit || events[i] != event)
+        {
+            return false;
+        }
+        events[i] = null;
+        event.bucketIndex = -1;
+        size--;
+        trim();
+        return true;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(events, 0, limit, null);
+        limit = 0;
+        size = 0;
+    }
+
+    /**
+     * Drop empty places from the end, so the last place holds an event.
+     */
+    private void trim()
+    {
+        while (limit > 0 && events[limit - 1] == null)
+        {
+            limit--;
+        }
+    }
+
+    /**
+     * Squeeze out empty places left by remove.
+     */
+    private void compact()
+    {
+        if (size == limit)
+        {
+            return;
+        }
+        int n = 0;
+        for (int i = 0; i < limit; i++)
+        {
+            if (events[i] != null)
+            {
+                events[n++] = events[i];
+            }
+        }
+        Arrays.fill(events, n, limit, null);
+        limit = n;
+    }
+
+    /**
+     * Sort the events with a merge sort, which is stable and doesn't
+     * allocate as long as scratch is at least as long as this bucket.
+     *
+     * @return the scratch array, grown if it had to be.
+     */
+    public Event[] sort(Comparator<Event> comparator, Event[] scratch)
+    {
+        compact();
+        if (scratch.length < size)
+        {
+            scratch = new Event[Math.max(size, scratch.length * 2)];
+        }
+        mergeSort(comparator, scratch, 0, size);
+        for (int i = 0; i < size; i++)
+        {
+            events[i].bucketIndex = i;
+        }
+        return scratch;
+    }
+
+    private void mergeSort(Comparator<Event> comparator, Event[] scratch,
+                           int from, int to)
+    {
+        if (to - from < 2)
+        {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(comparator, scratch, from, middle);
+        mergeSort(comparator, scratch, middle, to);
+
+        // already in order, as it usually is when events are added in
+        // the order they were scheduled
+        if (comparator.compare(events[middle - 1], events[middle]) <= 0)
+        {
+            return;
+        }
+
+        System.arraycopy(events, from, scratch, from, to - from);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; k++)
+        {
+            if (j >= to
+                || (i < middle && comparator.compare(scratch[i],
+                                                     scratch[j]) <= 0))
+            {
+                events[k] = scratch[i++];
+            }
+            else
+            {
+                events[k] = scratch[j++];
+            }
+        }
+        Arrays.fill(scratch, from, to, null);
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A binary heap of events that remembers where each event sits, so
+ * an arbitrary event can be removed in O(log n) instead of the linear
+ * search PriorityQueue.remove does.  The sift logic is the same as
+ * java.util.PriorityQueue's, so events come out in exactly the order
+ * they would from a PriorityQueue given the same operations.
+ */
+final class EventHeap implements EventQueue
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Comparator<Event> comparator;
+    private Event[] heap;
+    private int size;
+
+    public EventHeap(Comparator<Event> comparator)
+    {
+        this.comparator = comparator;
+        this.heap = new Event[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public Event peek()
+    {
+        return heap[0];
+    }
+
+    @Override
+    public void add(Event event)
+    {
+        if (size >= heap.length)
+        {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        int i = size;
+        size = i + 1;
+        siftUp(i, event);
+    }
+
+    /**
+     * Add a batch of events.  If the batch is at least as big as the
+     * heap, they are appended and the whole heap is rebuilt bottom up,
+     * which is O(n) rather than the O(n log n) of adding them one at a
+     * time.  The comparator breaks every tie, so the heap comes out in
+     * the same order either way.
+     */
+    @Override
+    public void addAll(Event[] events, int count)
+    {
+        if (count < size)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                add(events[i]);
+            }
+            return;
+        }
+
+        if (size + count > heap.length)
+        {
+            heap = Arrays.copyOf(heap, Math.max(heap.length * 2,
+                                                size + count));
+        }
+        for (int i = 0; i < count; i++)
+        {
+            place(size + i, events[i]);
+        }
+        size += count;
+        for (int k = (size >>> 1) - 1; k >= 0; k--)
+        {
+            siftDown(k, heap[k]);
+        }
+    }
+
+    @Override
+    public Event poll()
+    {
+        Event result = heap[0];
+        if (result != null)
+        {
+            int n = --size;
+            Event last = heap[n];
+            heap[n] = null;
+            if (n > 0)
+            {
+                siftDown(0, last);
+            }
+            result.heapIndex = -1;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove(Event event)
+    {
+        int i = event.heapIndex;
+        if (i < 0 || i >= size || heap[i] != event)
+        {
+            return false;
+        }
+
+        int s = --size;
+        if (s == i)
+        {
+            heap[i] = null;
+        }
+        else
+        {
+            Event moved = heap[s];
+            heap[s] = null;
+            siftDown(i, moved);
+            if (heap[i] == moved)
+            {
+                siftUp(i, moved);
+            }
+        }
+        event.heapIndex = -1;
+        return true;
+    }
+
+    private void siftUp(int k, Event event)
+    {
+        while (k > 0)
+        {
+            int parent = (k - 1) >>> 1;
+            Event e = heap[parent];
+            if (comparator.compare(event, e) >= 0)
+            {
+                break;
+            }
+            place(k, e);
+            k = parent;
+        }
+        place(k, event);
+    }
+
+    private void siftDown(int k, Event event)
+    {
+        int half = size >>> 1;
+        while (k < half)
+        {
+            int child = (k << 1) + 1;
+            Event c = heap[child];
+            int right = child + 1;
+            if (right < size && comparator.compare(c, heap[right]) > 0)
+            {
+                c = heap[child = right];
+            }
+            if (comparator.compare(event, c) <= 0)
+            {
+                break;
+            }
+            place(k, c);
+            k = child;
+        }
+        place(k, event);
+    }
+
+    private void place(int i, Event event)
+    {
+        heap[i] = event;
+        event.heapIndex = i;
+    }
+}
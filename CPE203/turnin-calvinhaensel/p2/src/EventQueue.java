@@ -0,0 +1,42 @@
+/**
+ * The queue an EventSchedule keeps its pending events in.  Events
+ * come out in the order given by EventTimeComparator: by time, and
+ * by the order they were scheduled when times are equal.
+ */
+interface EventQueue
+{
+    boolean isEmpty();
+
+    int size();
+
+    /**
+     * @return the earliest event, or null if the queue is empty.
+     */
+    Event peek();
+
+    /**
+     * Remove and return the earliest event, or null if the queue is empty.
+     */
+    Event poll();
+
+    void add(Event event);
+
+    /**
+     * Add the first count events of events.  Queues that can take a
+     * batch faster than one event at a time override this.
+     */
+    default void addAll(Event[] events, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            add(events[i]);
+        }
+    }
+
+    /**
+     * Remove the given event, if it is still queued.
+     *
+     * @return true if the event was found and removed.
+     */
+    boolean remove(Event event);
+}
@@ -1,9 +1,7 @@
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.LinkedList;
 // import Action.java;
 
 /**
@@ -13,16 +11,24 @@ import java.util.LinkedList;
 final class EventSchedule {
 
     /**
-     * A queue of events, sorted by time
+     * A queue of events, sorted by time.  Events due at the same time
+     * come out in the order they were scheduled.
+     */
+    public EventQueue eventQueue;
+
+    /*
+     * Each entity keeps a doubly-linked list of the events in the queue
+     * relating to it, threaded through the events themselves, starting
+     * at Entity.pendingEvents.  We keep this so we can efficiently
+     * remove them all, if needed, without allocating anything.
      */
-    public PriorityQueue<Event> eventQueue;
 
     /**
-     * A record of all the events in the queue relating to a given
-     * target.  We keep this so we can efficiently remove them all,
-     * if needed.
+     * Events that have run or been cancelled, linked through
+     * nextPending, ready to be reused.  Once the schedule has warmed up,
+     * scheduling an event allocates nothing.
      */
-    public Map<Object, List<Event>> pendingEvents;
+    private Event freeEvents;
 
     /**
      * The current time in ms, according to how far we've advanced.
@@ -36,7 +42,42 @@ final class EventSchedule {
     public double timeScale;
 
     /**
-     * Create a new EventSchedule.
+     * The number of events scheduled so far.  Each event is stamped
+     * with this, so ties in time have a well-defined order.
+     */
+    private long nextSequence;
+
+    /**
+     * Where to record what the schedule does, or null to record
+     * nothing.  See Simulation.enableMetrics.
+     */
+    public SimulationMetrics metrics;
+
+    /**
+     * What runs animations instead of ANIMATION events, or null if
+     * they are events like any other.  See useAnimationClock.
+     */
+    private AnimationClock animations;
+
+    /**
+     * How far behind, in ms, the last call to processEvents left the
+     * schedule: the time it was asked to reach less the time of the
+     * earliest event it had to leave in the queue, or 0 if it ran
+     * everything that was due.
+     */
+    private double lag;
+
+    /**
+     * Events scheduled between beginBulk and endBulk, held back so they
+     * can go into the queue together.  null outside of those.
+     */
+    private Event[] held;
+    private int heldCount;
+    private final List<Event> batch;
+    private final List<Event> animationBatch;
+
+    /**
+     * Create a new EventSchedule backed by a heap.
      *
      * @param timeScale  A multiplier applied whenever we schedule an
      *                   event.  This allows us to run the simulation
@@ -44,70 +85,481 @@ final class EventSchedule {
      */
     public EventSchedule(double timeScale)
     {
-        this.eventQueue = new PriorityQueue<>(new EventTimeComparator());
-        this.pendingEvents = new HashMap<>();
+        this(timeScale, SchedulerKind.HEAP);
+    }
+
+    /**
+     * Create a new EventSchedule.
+     *
+     * @param timeScale  A multiplier applied whenever we schedule an
+     *                   event.  This allows us to run the simulation
+     *                   faster.
+     * @param kind       Which queue implementation to use.
+     */
+    public EventSchedule(double timeScale, SchedulerKind kind)
+    {
+        this.eventQueue = createQueue(kind, timeScale);
+        this.freeEvents = null;
         this.timeScale = timeScale;
 	this.currentTime = 0.0;
+        this.nextSequence = 0;
+        this.batch = new ArrayList<>();
+        this.animationBatch = new ArrayList<>();
+        this.held = null;
+        this.heldCount = 0;
+        this.metrics = null;
+        this.lag = 0.0;
+        this.animations = null;
+    }
+
+    private static EventQueue createQueue(SchedulerKind kind,
+                                          double timeScale)
+    {
+        EventTimeComparator comparator = new EventTimeComparator();
+        switch (kind)
+        {
+        case TIMING_WHEEL:
+            // ticks are in scaled time, so keep about TICK_MS of game time
+            // per tick whatever the scale is
+            double tickWidth = TimingWheel.TICK_MS * timeScale;
+            return new TimingWheel(comparator,
+                tickWidth > 0 ? tickWidth : TimingWheel.TICK_MS);
+
+        case HEAP:
+        default:
+            return new EventHeap(comparator);
+        }
     }
 
     public void
-    scheduleEvent(Object target, Action action,
+    scheduleEvent(Entity target, Action action,
                   long after)
     {
         assert after >= 0;
         double time = currentTime +
                       (after * timeScale);
-        Event event = new Event(action, time, target);
+        enqueue(target, action, time, nextSequence++);
+    }
+
+    /**
+     * Start target's animation: it moves to its next image every
+     * getAnimationPeriod ms, repeatCount times, or forever if
+     * repeatCount is 0.  This is an ANIMATION event, or an entry in the
+     * animation clock if there is one.
+     */
+    public void
+    scheduleAnimation(Entity target, WorldModel world, int repeatCount)
+    {
+        long after = target.getAnimationPeriod();
+        if (animations == null)
+        {
+            scheduleEvent(target,
+                target.createAnimationAction(target, world, repeatCount),
+                after);
+        }
+        else
+        {
+            assert after >= 0;
+            animations.remove(target, currentTime);
+            animations.add(target, currentTime + (after * timeScale), after,
+                           repeatCount);
+        }
+    }
+
+    /**
+     * Run animations off an AnimationClock from now on, rather than as
+     * events, taking over the ANIMATION events now pending for entities.
+     * The world goes through the same states either way, but the clock
+     * moves entities that animate in step together, where events take
+     * a trip through the queue each.
+     *
+     * @param entities  Every entity in world with events pending.
+     * @param lazy      Whether tiles should only be worked out when
+     *                  drawn; see AnimationClock.
+     */
+    public void useAnimationClock(Iterable<Entity> entities, WorldModel world,
+                                  boolean lazy)
+    {
+        assert held == null;
+        if (animations != null)
+        {
+            return;
+        }
+        animations = new AnimationClock(timeScale, world, lazy);
+        for (Entity entity : entities)
+        {
+            Event event = entity.pendingEvents;
+            while (event != null)
+            {
+                Event next = event.nextPending;
+                Action action = event.getAction();
+                if (action.kind == ActionKind.ANIMATION
+                    && eventQueue.remove(event))
+                {
+                    removePendingEvent(event);
+                    animations.add(entity, event.time,
+                                   entity.getAnimationPeriod(),
+                                   action.repeatCount);
+                    releaseEvent(event);
+                }
+                event = next;
+            }
+        }
+    }
+
+    /**
+     * @return the clock running animations, or null if they are events.
+     */
+    public AnimationClock getAnimationClock()
+    {
+        return animations;
+    }
+
+    /**
+     * Put back an event that was pending when a snapshot was taken, due
+     * at the given absolute time, with its original sequence number so
+     * it keeps its place among events due at the same time.  Events for
+     * one target must be restored oldest first.
+     */
+    public void
+    restoreEvent(Entity target, Action action, double time, long sequence)
+    {
+        enqueue(target, action, time, sequence);
+    }
+
+    /**
+     * Start scheduling a large number of events at once, such as the
+     * first actions of every entity in a newly loaded world.  Until
+     * endBulk, events are scheduled (and can be unscheduled) as usual,
+     * but are only put in the queue by endBulk, in one batch.  Events
+     * can't be processed in between.
+     */
+    public void beginBulk()
+    {
+        assert held == null;
+        held = new Event[64];
+        heldCount = 0;
+    }
 
-        eventQueue.add(event);
+    /**
+     * Put the events scheduled since beginBulk in the queue.  See
+     * EventQueue.addAll.
+     */
+    public void endBulk()
+    {
+        int count = 0;
+        for (int i = 0; i < heldCount; i++)
+        {
+            Event event = held[i];
+            if (event.cancelled)
+            {
+                releaseEvent(event);
+            }
+            else
+            {
+                held[count++] = event;
+            }
+        }
+        eventQueue.addAll(held, count);
+        held = null;
+        heldCount = 0;
+    }
+
+    /**
+     * @return the sequence number the next event will be given.
+     */
+    public long getNextSequence()
+    {
+        return nextSequence;
+    }
+
+    public void setNextSequence(long sequence)
+    {
+        nextSequence = sequence;
+    }
+
+    private void
+    enqueue(Entity target, Action action, double time, long sequence)
+    {
+        Event event = obtainEvent(action, time, target);
+        event.sequence = sequence;
+
+        if (held != null)
+        {
+            if (heldCount == held.length)
+            {
+                held = Arrays.copyOf(held, heldCount * 2);
+            }
+            held[heldCount++] = event;
+        }
+        else
+        {
+            eventQueue.add(event);
+        }
 
         // update list of pending events for the given target
-        List<Event> pending = pendingEvents.get(target);
-        if (pending == null) {
-            pending = new LinkedList<>();
-            pendingEvents.put(target, pending);
+        Event head = target.pendingEvents;
+        event.nextPending = head;
+        if (head != null) {
+            head.prevPending = event;
         }
-        pending.add(event);
+        target.pendingEvents = event;
     }
 
     public void
-    unscheduleAllEvents(Object target)
+    unscheduleAllEvents(Entity target)
     {
-        List<Event> pending = pendingEvents.remove(target);
+        if (animations != null)
+        {
+            animations.remove(target, currentTime);
+        }
+        Event event = target.pendingEvents;
+        target.pendingEvents = null;
 
-        if (pending != null)
+        while (event != null)
         {
-            for (Event event : pending)
+            Event next = event.nextPending;
+            event.nextPending = null;
+            event.prevPending = null;
+            if (metrics != null)
             {
-                eventQueue.remove(event);
+                metrics.eventCancelled();
             }
+
+            if (eventQueue.remove(event))
+            {
+                releaseEvent(event);
+            }
+            else
+            {
+                // it's out of the queue, held back for endBulk or
+                // waiting in a time slice; either skips it, and
+                // recycles it afterwards
+                event.cancelled = true;
+            }
+            event = next;
         }
     }
 
     private void
     removePendingEvent(Event event)
     {
-        List<Event> pending = pendingEvents.get(event.target);
+        Event prev = event.prevPending;
+        Event next = event.nextPending;
+
+        if (prev != null)
+        {
+            prev.nextPending = next;
+        }
+        else if (event.target.pendingEvents == event)
+        {
+            event.target.pendingEvents = next;
+        }
+        if (next != null)
+        {
+            next.prevPending = prev;
+        }
+        event.nextPending = null;
+        event.prevPending = null;
+    }
 
-        if (pending != null)
+    private Event obtainEvent(Action action, double time, Entity target)
+    {
+        Event event = freeEvents;
+        if (event == null)
         {
-            pending.remove(event);
+            return new Event(action, time, target);
         }
+        freeEvents = event.nextPending;
+        event.nextPending = null;
+        event.action = action;
+        event.time = time;
+        event.target = target;
+        return event;
+    }
+
+    private void releaseEvent(Event event)
+    {
+        event.action = null;
+        event.target = null;
+        event.cancelled = false;
+        event.heapIndex = -1;
+        event.wheelSlot = -1;
+        event.bucketIndex = -1;
+        event.prevPending = null;
+        event.nextPending = freeEvents;
+        freeEvents = event;
     }
 
     public void processEvents(double time)
     {
+        processEvents(time, 0);
+    }
+
+    /**
+     * Run events due at or before time, in order, as processEvents(time)
+     * does, but give up once budgetNanos of wall time have gone by.
+     * Whatever is still due is left in the queue, and currentTime is
+     * left at the last event run, so the next call carries on exactly
+     * where this one stopped: a backlog is spread over later calls
+     * without changing what happens in the world.  See getLag.
+     *
+     * @param budgetNanos  The most wall time to take, roughly, or 0 for
+     *                     no limit.
+     * @return whether every event due by time was run.
+     */
+    public boolean processEvents(double time, long budgetNanos)
+    {
+        assert held == null;
+        if (metrics != null)
+        {
+            metrics.queueDepth(eventQueue.size());
+        }
+        boolean caughtUp = runEvents(time, budgetNanos);
+
+        if (caughtUp)
+        {
+            currentTime = time;
+            lag = 0.0;
+        }
+        else
+        {
+            lag = time - eventQueue.peek().time;
+        }
+        if (animations != null)
+        {
+            // an animation only changes its own entity's tile, so
+            // running them after the events rather than among them
+            // comes to the same thing
+            animations.advanceTo(currentTime, metrics);
+        }
+        if (metrics != null)
+        {
+            metrics.lag(lag, !caughtUp);
+        }
+        return caughtUp;
+    }
+
+    /**
+     * @return how far behind, in ms, the last call to processEvents
+     *         left the schedule; 0 if it caught up.
+     */
+    public double getLag()
+    {
+        return lag;
+    }
+
+    /**
+     * Run events due at or before time, a time slice at a time: every
+     * event due at the same time is taken out of the queue, and the
+     * slice is dispatched in two groups, each in a loop of its own.
+     * First every animation, then every activity in event order,
+     * skipping any cancelled by an activity before it.
+     *
+     * An animation only changes its own entity, so running them ahead
+     * of the activities due at the same time leaves the world as it
+     * would be in plain event order.  Activities read and change the
+     * world, so they keep their sequence order (the tie-break the
+     * queues promise) and are not grouped by EntityKind: two miners due
+     * at the same time can reach for the same ore, and which one runs
+     * first decides who gets it.  executeActivityAction still switches
+     * on the entity's kind for that reason.
+     */
+    private boolean runEvents(double time, long budgetNanos)
+    {
+        long start = budgetNanos > 0 ? System.nanoTime() : 0;
+
         while (!eventQueue.isEmpty() &&
                eventQueue.peek().time <= time)
         {
-            Event next = eventQueue.poll();
-            assert currentTime <= next.time;
-            currentTime = next.time;
+            if (budgetNanos > 0 && System.nanoTime() - start >= budgetNanos)
+            {
+                return false;
+            }
+
+            Event first = eventQueue.poll();
+            double sliceTime = first.time;
+            assert currentTime <= sliceTime;
+            currentTime = sliceTime;
+
+            if (!eventQueue.isEmpty() && eventQueue.peek().time == sliceTime)
+            {
+                runSlice(first);
+                continue;
+            }
 
+            // nothing to group it with
+            removePendingEvent(first);
+            if (metrics != null)
+            {
+                metrics.eventExecuted(first.getAction());
+            }
+            first.getAction().executeAction(this);
+            releaseEvent(first);
+        }
+        return true;
+    }
+
+    /**
+     * Run first, which is due at currentTime, and everything else in
+     * the queue due at the same time, grouped as described for
+     * runEvents.
+     */
+    private void runSlice(Event first)
+    {
+        double sliceTime = first.time;
+
+        // animations in animationBatch, activities in batch
+        Event event = first;
+        while (true)
+        {
+            if (event.getAction().kind == ActionKind.ANIMATION)
+            {
+                animationBatch.add(event);
+            }
+            else
+            {
+                batch.add(event);
+            }
+            if (eventQueue.isEmpty()
+                || eventQueue.peek().time != sliceTime)
+            {
+                break;
+            }
+            event = eventQueue.poll();
+        }
+
+        for (int i = 0; i < animationBatch.size(); i++)
+        {
+            Event next = animationBatch.get(i);
             removePendingEvent(next);
+            Action action = next.getAction();
+            if (metrics != null)
+            {
+                metrics.eventExecuted(action);
+            }
+            action.executeAnimationAction(this);
+            releaseEvent(next);
+        }
+        animationBatch.clear();
 
-            next.getAction().executeAction(this);
+        for (int i = 0; i < batch.size(); i++)
+        {
+            Event next = batch.get(i);
+            if (next.cancelled)
+            {
+                releaseEvent(next);
+                continue;
+            }
+            removePendingEvent(next);
+            Action action = next.getAction();
+            if (metrics != null)
+            {
+                metrics.eventExecuted(action);
+            }
+            action.executeActivityAction(this);
+            releaseEvent(next);
         }
-        currentTime = time;
+        batch.clear();
     }
 }
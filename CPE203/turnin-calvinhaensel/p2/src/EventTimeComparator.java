@@ -1,12 +1,18 @@
 import java.util.Comparator;
 
 /**
- * A comparator used to sort events by time.
+ * A comparator used to sort events by time.  Events due at the same
+ * time are run in the order they were scheduled.
  */
 final class EventTimeComparator implements Comparator<Event>
 {
     public int compare(Event left, Event right)
     {
-        return Double.compare(left.time, right.time);
+        int result = Double.compare(left.time, right.time);
+        if (result == 0)
+        {
+            result = Long.compare(left.sequence, right.sequence);
+        }
+        return result;
     }
 }
@@ -0,0 +1,89 @@
+import java.util.Arrays;
+import edu.calpoly.spritely.Tile;
+
+/**
+ * A WorldGrid held in flat arrays covering every cell, plus a bitset
+ * of the occupied cells.  This is the fastest grid when it fits in
+ * memory comfortably.
+ */
+final class FlatGrid implements WorldGrid
+{
+    private final int width;
+    private final Tile[] background;
+    private final Entity[] occupant;
+    private final long[] occupied;
+
+    public FlatGrid(int width, int height)
+    {
+        int cells = width * height;
+        this.width = width;
+        this.background = new Tile[cells];
+        this.occupant = new Entity[cells];
+        this.occupied = new long[(cells + 63) / 64];
+    }
+
+    @Override
+    public Tile getBackground(int cell)
+    {
+        return background[cell];
+    }
+
+    @Override
+    public void setBackground(int cell, Tile tile)
+    {
+        background[cell] = tile;
+    }
+
+    @Override
+    public void fillBackground(Tile tile)
+    {
+        Arrays.fill(background, tile);
+    }
+
+    @Override
+    public Entity getOccupant(int cell)
+    {
+        return occupant[cell];
+    }
+
+    @Override
+    public void setOccupant(int cell, Entity entity)
+    {
+        occupant[cell] = entity;
+        if (entity != null)
+        {
+            occupied[cell >>> 6] |= 1L << cell;
+        }
+        else
+        {
+            occupied[cell >>> 6] &= ~(1L << cell);
+        }
+    }
+
+    @Override
+    public boolean isOccupied(int cell)
+    {
+        return (occupied[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    @Override
+    public long occupiedRow(int x, int y)
+    {
+        int cell = y * width + x;
+        int word = cell >>> 6;
+        int shift = cell & 63;
+        long bits = occupied[word] >>> shift;
+        if (shift != 0 && word + 1 < occupied.length)
+        {
+            bits |= occupied[word + 1] << (64 - shift);
+        }
+
+        // the bitset runs on into the next row; cut it off
+        int left = width - x;
+        if (left < 64)
+        {
+            bits &= (1L << left) - 1;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the virtual world without a window, as fast as the CPU allows.
+ * Instead of waiting for SpriteWindow to hand out frames, a virtual
+ * clock is advanced in fixed steps and the event schedule is drained
+ * up to each step.  Nothing is painted, and no images are loaded.
+ * Several independent worlds can be run at once, e.g. for a parameter
+ * sweep; they share one set of assets.
+ */
+public final class HeadlessSimulation
+{
+    public static final double DEFAULT_SECONDS = 600.0;
+    public static final double DEFAULT_STEP_MS = 1000.0;
+
+    private HeadlessSimulation()
+    {
+    }
+
+    /**
+     * Usage: java HeadlessSimulation [simulatedSeconds [timeScale
+     * [seed [worlds [gridFile [parallelLoad [metricsSeconds
+     * [animationClock [snapshotFile [scheduler]]]]]]]]]]
+     *
+     * Each world starts from VirtualWorld.WORLD_FILE, parsed on the
+     * common ForkJoinPool if parallelLoad is true.  With more than
+     * one world, world i uses seed + i.  Given a grid
+     * file, each world's grid is kept off the heap in a file mapped from
+     * there (gridFile.i with more than one world); see MappedGrid.  A
+     * grid file left by an earlier run is mapped again rather than made
+     * afresh.  An empty gridFile means none.
+     *
+     * Given metricsSeconds, SimulationMetrics are recorded, and printed
+     * every metricsSeconds of simulated time, or for each world at the
+     * end when there are several.
+     *
+     * Animations run as events like any other unless animationClock
+     * is true, for an AnimationClock that keeps every tile up to date,
+     * or lazy, for one that only works a tile out when it is drawn,
+     * which suits a run where nothing is.
+     *
+     * Given a snapshot file (snapshotFile.i with more than one world),
+     * a world carries on from the snapshot there if there is one, with
+     * the time scale, random state and animation clock it was saved
+     * with, and on a heap grid; and is saved back there at the end of
+     * the run; see Snapshot.  An empty snapshotFile means none.
+     *
+     * scheduler is the SchedulerKind new worlds run on, HEAP unless
+     * given; a world from a snapshot keeps the one it was saved with.
+     */
+    public static void main(String[] args)
+        throws InterruptedException, ExecutionException, IOException
+    {
+        double seconds = args.length > 0
+            ? Double.parseDouble(args[0]) : DEFAULT_SECONDS;
+        double timeScale = args.length > 1
+            ? Double.parseDouble(args[1]) : 1.0;
+        long seed = args.length > 2
+            ? Long.parseLong(args[2]) : WorldRandom.randomSeed();
+        int worlds = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        String gridFile = args.length > 4 && !args[4].isEmpty()
+            ? args[4] : null;
+        boolean parallelLoad = args.length > 5
+            && Boolean.parseBoolean(args[5]);
+        double metricsSeconds = args.length > 6
+            ? Double.parseDouble(args[6]) : 0.0;
+        String animationClock = args.length > 7 ? args[7] : "false";
+        String snapshotFile = args.length > 8 && !args[8].isEmpty()
+            ? args[8] : null;
+        SchedulerKind scheduler = args.length > 9
+            ? SchedulerKind.valueOf(args[9]) : SchedulerKind.HEAP;
+
+        WorldAssets assets = WorldAssets.placeholders();
+        List<Simulation> simulations = new ArrayList<>(worlds);
+        for (int i = 0; i < worlds; i++) {
+            if (snapshotFile != null
+                && Files.exists(numbered(snapshotFile, i, worlds))) {
+                Simulation simulation =
+                    Snapshot.load(numbered(snapshotFile, i, worlds), assets);
+                if (metricsSeconds > 0) {
+                    simulation.enableMetrics();
+                }
+                simulations.add(simulation);
+                continue;
+            }
+            WorldFile.GridFactory grids = WorldGrid::create;
+            if (gridFile != null) {
+                java.nio.file.Path path = numbered(gridFile, i, worlds);
+                grids = (width, height) -> Files.exists(path)
+                    ? MappedGrid.open(path, width, height,
+                                      assets.backgroundTiles())
+                    : MappedGrid.create(path, width, height,
+                                        assets.backgroundTiles());
+            }
+            Simulation simulation = Simulation.createDefault(assets, seed + i,
+                timeScale, scheduler, grids,
+                parallelLoad ? ForkJoinPool.commonPool() : null);
+            if (!animationClock.equals("false")) {
+                simulation.useAnimationClock(animationClock.equals("lazy"));
+            }
+            if (metricsSeconds > 0) {
+                simulation.enableMetrics();
+            }
+            simulations.add(simulation);
+        }
+        System.out.println("Seed: " + seed);
+
+        if (worlds == 1) {
+            run(simulations.get(0), seconds * 1000.0, DEFAULT_STEP_MS,
+                metricsSeconds * 1000.0);
+        } else {
+            runAll(simulations, seconds * 1000.0, DEFAULT_STEP_MS);
+            for (int i = 0; i < worlds; i++) {
+                SimulationMetrics metrics =
+                    simulations.get(i).eventSchedule.metrics;
+                if (metrics != null) {
+                    System.out.print("World " + i + ":\n"
+                                     + metrics.getReport());
+                }
+            }
+        }
+
+        if (snapshotFile != null) {
+            for (int i = 0; i < worlds; i++) {
+                Snapshot.save(simulations.get(i),
+                              numbered(snapshotFile, i, worlds));
+            }
+        }
+    }
+
+    /**
+     * The file for world i of worlds: file itself if there is only one,
+     * or file.i.
+     */
+    private static java.nio.file.Path numbered(String file, int i,
+                                               int worlds)
+    {
+        return Paths.get(worlds == 1 ? file : file + "." + i);
+    }
+
+    /**
+     * Run a simulation for the given amount of simulated time, then
+     * print how fast it went.
+     *
+     * @param simulatedMs  How far to advance the virtual clock, in ms.
+     * @param stepMs       How far the clock moves per step.  This only
+     *                     affects how often we return to the loop; the
+     *                     events run are the same for any step.
+     * @param reportMs     How often to print the simulation's metrics,
+     *                     in simulated ms, if it is recording them.
+     * @return simulated seconds per wall-clock second.
+     */
+    public static double run(Simulation simulation, double simulatedMs,
+                             double stepMs, double reportMs)
+    {
+        long start = System.nanoTime();
+        advance(simulation, simulatedMs, stepMs, reportMs);
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+
+        double rate = (simulatedMs / 1000.0) / Math.max(wallSeconds, 1e-9);
+        System.out.printf("Simulated %.1f s in %.3f s of wall time: "
+                          + "%.1f simulated s per wall s "
+                          + "(%d entities, %d events pending)%n",
+                          simulatedMs / 1000.0, wallSeconds, rate,
+                          simulation.model.entities.size(),
+                          simulation.eventSchedule.eventQueue.size());
+        printCensus(simulation.model);
+        return rate;
+    }
+
+    /**
+     * Run several simulations at once, one per available processor at a
+     * time, and print their combined rate.
+     *
+     * @return total simulated seconds per wall-clock second.
+     */
+    public static double runAll(List<Simulation> simulations,
+                                double simulatedMs, double stepMs)
+        throws InterruptedException, ExecutionException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> results = new ArrayList<>(simulations.size());
+            for (Simulation simulation : simulations) {
+                results.add(executor.submit(() ->
+                    advance(simulation, simulatedMs, stepMs, 0.0)));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+
+        double total = simulations.size() * simulatedMs / 1000.0;
+        double rate = total / Math.max(wallSeconds, 1e-9);
+        System.out.printf("Simulated %d worlds for %.1f s each in %.3f s "
+                          + "of wall time: %.1f simulated s per wall s%n",
+                          simulations.size(), simulatedMs / 1000.0,
+                          wallSeconds, rate);
+        return rate;
+    }
+
+    /**
+     * Print how many entities of each kind there are, and how much ore
+     * the miners are carrying out of how much they can carry, all
+     * swept from the entity store.
+     */
+    public static void printCensus(WorldModel model)
+    {
+        EntityStore store = model.store;
+        int[] counts = new int[EntityKind.values().length];
+        store.countByKind(counts);
+        StringBuilder line = new StringBuilder();
+        for (EntityKind kind : EntityKind.values()) {
+            if (counts[kind.ordinal()] > 0) {
+                line.append(kind).append(' ')
+                    .append(counts[kind.ordinal()]).append("  ");
+            }
+        }
+        line.append("carried ore ")
+            .append(store.totalResources(EntityKind.MINER_NOT_FULL)
+                    + store.totalResources(EntityKind.MINER_FULL))
+            .append(" of ")
+            .append(store.totalCapacity(EntityKind.MINER_NOT_FULL)
+                    + store.totalCapacity(EntityKind.MINER_FULL));
+        System.out.println(line);
+    }
+
+    private static void advance(Simulation simulation, double simulatedMs,
+                                double stepMs, double reportMs)
+    {
+        assert stepMs > 0;
+        SimulationMetrics metrics = simulation.eventSchedule.metrics;
+        boolean report = metrics != null && reportMs > 0;
+        double clock = simulation.eventSchedule.currentTime;
+        double end = clock + simulatedMs;
+        double nextReport = clock + reportMs;
+        while (clock < end) {
+            clock = Math.min(clock + stepMs, end);
+            simulation.advanceTo(clock);
+            if (report && clock >= nextReport) {
+                System.out.printf("At %.1f s:%n%s", clock / 1000.0,
+                                  metrics.getReport());
+                nextReport += reportMs;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values, such as latencies in ns, in buckets
+ * whose width grows with the value, in the style of HdrHistogram.
+ * Each power of two is split into SUB_BUCKETS equal buckets, so any
+ * value is known to within an eighth of itself while the whole range
+ * of a long takes under 500 buckets.  Recording is a few shifts and
+ * an atomic increment, and safe to do from any thread; reading while
+ * recording is going on gives a close, if not exact, picture.
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong total;
+    private final AtomicLong max;
+
+    public LatencyHistogram()
+    {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.total = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        if (value > max.get())
+        {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) total.get() / n;
+    }
+
+    /**
+     * @param percentile  between 0 and 100.
+     * @return the highest value in the bucket holding the given
+     *         percentile of what has been recorded, or 0 if nothing has.
+     */
+    public long valueAtPercentile(double percentile)
+    {
+        long n = count.get();
+        if (n == 0)
+        {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= wanted)
+            {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Summarize as count, mean, median, 99th percentile and max.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("n=%d mean=%.1f p50=%d p99=%d max=%d",
+                             getCount(), getMean(), valueAtPercentile(50),
+                             valueAtPercentile(99), getMax());
+    }
+
+    /*
+     * Values below SUB_BUCKETS get a bucket each.  Above that, a value
+     * whose top bit is bit b goes in one of the SUB_BUCKETS buckets for
+     * b, picked by the SUB_BITS bits below the top one.
+     */
+
+    private static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS)
+            + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestIn(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long low = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))
+            << shift;
+        return low + (1L << shift) - 1;
+    }
+}
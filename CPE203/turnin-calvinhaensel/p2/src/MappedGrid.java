@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import edu.calpoly.spritely.Tile;
+
+/**
+ * A WorldGrid kept in a memory-mapped file rather than on the heap,
+ * for worlds whose grid is too big to want the garbage collector
+ * looking at.  The file holds, for each cell, a background tile number
+ * and the id of its occupant in the world's EntityStore, plus a bitset
+ * of the occupied cells.  Only the Entity objects themselves, and the
+ * handful of distinct background tiles, are on the heap.
+ *
+ * Tiles can't be written to a file, so backgrounds are stored as
+ * numbers into a palette of tiles: those the grid was created with,
+ * then any others in the order they were first used.  Opening an
+ * existing file with the same palette brings its background back
+ * straight away, without reading it in.
+ *
+ * Nothing is cleared a cell at a time.  Cells are stamped in blocks of
+ * 64 with the epoch their background and occupancy were written in, and
+ * a block stamped with an older epoch reads as fill and empty.  Filling
+ * the background starts a new background epoch, and opening the file
+ * a new occupancy epoch, since entities live on the heap and have to be
+ * put back in the world; so both cost the same on any size of grid.
+ *
+ * A single mapping can't exceed 2 GB, so the file is mapped in
+ * segments of SEGMENT_SIZE bytes.  Every region of the file starts on
+ * an 8-byte boundary, so no value is ever split between segments.
+ */
+final class MappedGrid implements WorldGrid
+{
+    private static final int MAGIC = 0x4d4e5747;    // "MNWG"
+    private static final int VERSION = 2;
+
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // header layout
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 4;
+    private static final int WIDTH_AT = 8;
+    private static final int HEIGHT_AT = 12;
+    private static final int PALETTE_SIZE_AT = 16;
+    private static final int FILL_AT = 20;          // palette index, or -1
+    private static final int BACKGROUND_EPOCH_AT = 24;
+    private static final int OCCUPANCY_EPOCH_AT = 28;
+
+    private static final int BLOCK_BITS = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    private final int width;
+    private final int height;
+    private final long blocks;
+    // regions hold whole blocks, so clearing one never spills over
+    private final long backgroundAt;    // a short per cell; 0 is fill
+    private final long occupantAt;      // an int per cell; id + 1, or 0
+    private final long occupiedAt;      // a bit per cell, in longs
+    private final long backgroundStampAt;   // an int per block
+    private final long occupancyStampAt;    // an int per block
+    private final MappedByteBuffer[] segments;
+
+    private final List<Tile> palette;
+    private Tile fillTile;
+    private int backgroundEpoch;
+    private int occupancyEpoch;
+    private EntityStore store;
+
+    private MappedGrid(FileChannel channel, int width, int height,
+                       List<Tile> palette, boolean create)
+        throws IOException
+    {
+        this.width = width;
+        this.height = height;
+        this.blocks = ((long) width * height + BLOCK_SIZE - 1) >>> BLOCK_BITS;
+        this.backgroundAt = HEADER_SIZE;
+        this.occupantAt = backgroundAt + 2 * BLOCK_SIZE * blocks;
+        this.occupiedAt = occupantAt + 4 * BLOCK_SIZE * blocks;
+        this.backgroundStampAt = occupiedAt + 8 * blocks;
+        this.occupancyStampAt = align(backgroundStampAt + 4 * blocks);
+        long length = align(occupancyStampAt + 4 * blocks);
+
+        if (create)
+        {
+            // the file is sparse, so this doesn't write the zeros
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+        else if (channel.size() < length)
+        {
+            throw new IOException("grid file is too short");
+        }
+
+        int count = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+        this.segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++)
+        {
+            long start = (long) i << SEGMENT_BITS;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                                      Math.min(SEGMENT_SIZE, length - start));
+            segments[i].order(ByteOrder.nativeOrder());
+        }
+
+        this.palette = new ArrayList<>(palette);
+        if (create)
+        {
+            // every stamp is 0, so every block is out of date
+            putInt(MAGIC_AT, MAGIC);
+            putInt(VERSION_AT, VERSION);
+            putInt(WIDTH_AT, width);
+            putInt(HEIGHT_AT, height);
+            putInt(PALETTE_SIZE_AT, palette.size());
+            putInt(FILL_AT, -1);
+            putInt(BACKGROUND_EPOCH_AT, 1);
+            putInt(OCCUPANCY_EPOCH_AT, 1);
+            this.fillTile = null;
+            this.backgroundEpoch = 1;
+            this.occupancyEpoch = 1;
+        }
+        else
+        {
+            int fill = getInt(FILL_AT);
+            this.fillTile = fill < 0 ? null : this.palette.get(fill);
+            this.backgroundEpoch = getInt(BACKGROUND_EPOCH_AT);
+            this.occupancyEpoch = nextEpoch(OCCUPANCY_EPOCH_AT,
+                                            occupancyStampAt);
+        }
+    }
+
+    /**
+     * Create a new grid file, replacing any file already at path.
+     *
+     * @param palette  the tiles backgrounds are expected to be drawn
+     *                 from; others are added as they are used.
+     */
+    public static MappedGrid create(java.nio.file.Path path, int width,
+                                    int height, List<Tile> palette)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE))
+        {
+            return new MappedGrid(channel, width, height, palette, true);
+        }
+    }
+
+    /**
+     * Map an existing grid file, of the given size, and empty it of
+     * entities.
+     *
+     * @param palette  the tiles it was created with; it must not have
+     *                 had others added since.
+     */
+    public static MappedGrid open(java.nio.file.Path path, int width,
+                                  int height, List<Tile> palette)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            MappedByteBuffer header = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            if (header.getInt(MAGIC_AT) != MAGIC
+                || header.getInt(VERSION_AT) != VERSION)
+            {
+                throw new IOException("not a grid file: " + path);
+            }
+            if (header.getInt(WIDTH_AT) != width
+                || header.getInt(HEIGHT_AT) != height)
+            {
+                throw new IOException("grid file " + path + " is "
+                                      + header.getInt(WIDTH_AT) + "x"
+                                      + header.getInt(HEIGHT_AT) + ", not "
+                                      + width + "x" + height);
+            }
+            if (header.getInt(PALETTE_SIZE_AT) != palette.size())
+            {
+                throw new IOException("grid file needs a palette of "
+                                      + header.getInt(PALETTE_SIZE_AT)
+                                      + " tiles");
+            }
+            return new MappedGrid(channel, width, height, palette, false);
+        }
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public void attach(EntityStore store)
+    {
+        this.store = store;
+    }
+
+    @Override
+    public Tile getBackground(int cell)
+    {
+        if (getInt(backgroundStampAt + 4L * (cell >>> BLOCK_BITS))
+            != backgroundEpoch)
+        {
+            return fillTile;
+        }
+        int tile = getShort(backgroundAt + 2L * cell) & 0xffff;
+        return tile == 0 ? fillTile : palette.get(tile - 1);
+    }
+
+    @Override
+    public void setBackground(int cell, Tile tile)
+    {
+        long block = cell >>> BLOCK_BITS;
+        if (tile == fillTile
+            && getInt(backgroundStampAt + 4L * block) != backgroundEpoch)
+        {
+            return;
+        }
+        claim(block, backgroundStampAt, backgroundEpoch,
+              backgroundAt + 2 * BLOCK_SIZE * block, 2 * BLOCK_SIZE);
+        putShort(backgroundAt + 2L * cell, tile == fillTile
+                 ? (short) 0 : (short) (paletteIndex(tile) + 1));
+    }
+
+    @Override
+    public void fillBackground(Tile tile)
+    {
+        backgroundEpoch = nextEpoch(BACKGROUND_EPOCH_AT, backgroundStampAt);
+        fillTile = tile;
+        putInt(FILL_AT, paletteIndex(tile));
+    }
+
+    @Override
+    public Entity getOccupant(int cell)
+    {
+        if (getInt(occupancyStampAt + 4L * (cell >>> BLOCK_BITS))
+            != occupancyEpoch)
+        {
+            return null;
+        }
+        int id = getInt(occupantAt + 4L * cell) - 1;
+        return id < 0 ? null : store.entity[id];
+    }
+
+    @Override
+    public void setOccupant(int cell, Entity entity)
+    {
+        long block = cell >>> BLOCK_BITS;
+        if (entity == null
+            && getInt(occupancyStampAt + 4L * block) != occupancyEpoch)
+        {
+            return;
+        }
+        long word = occupiedAt + 8 * block;
+        if (claim(block, occupancyStampAt, occupancyEpoch,
+                  occupantAt + 4 * BLOCK_SIZE * block, 4 * BLOCK_SIZE))
+        {
+            putLong(word, 0L);
+        }
+        long bits = getLong(word);
+        if (entity != null)
+        {
+            // the entity must be in the store first, so it has an id
+            assert entity.id != EntityStore.NO_ENTITY;
+            putInt(occupantAt + 4L * cell, entity.id + 1);
+            putLong(word, bits | (1L << cell));
+        }
+        else
+        {
+            putInt(occupantAt + 4L * cell, 0);
+            putLong(word, bits & ~(1L << cell));
+        }
+    }
+
+    @Override
+    public boolean isOccupied(int cell)
+    {
+        return (occupiedWord(cell >>> BLOCK_BITS) & (1L << cell)) != 0;
+    }
+
+    @Override
+    public long occupiedRow(int x, int y)
+    {
+        long cell = (long) y * width + x;
+        long word = cell >>> BLOCK_BITS;
+        int shift = (int) (cell & 63);
+        long bits = occupiedWord(word) >>> shift;
+        if (shift != 0 && word + 1 < blocks)
+        {
+            bits |= occupiedWord(word + 1) << (64 - shift);
+        }
+
+        int left = width - x;
+        if (left < 64)
+        {
+            bits &= (1L << left) - 1;
+        }
+        return bits;
+    }
+
+    private int paletteIndex(Tile tile)
+    {
+        for (int i = 0; i < palette.size(); i++)
+        {
+            if (palette.get(i) == tile)
+            {
+                return i;
+            }
+        }
+        if (palette.size() == 0xfffe)
+        {
+            throw new IllegalStateException("too many background tiles");
+        }
+        palette.add(tile);
+        putInt(PALETTE_SIZE_AT, palette.size());
+        return palette.size() - 1;
+    }
+
+    /**
+     * The occupied bits of a block, which are all clear if it was last
+     * written in an earlier epoch.
+     */
+    private long occupiedWord(long block)
+    {
+        if (getInt(occupancyStampAt + 4 * block) != occupancyEpoch)
+        {
+            return 0L;
+        }
+        return getLong(occupiedAt + 8 * block);
+    }
+
+    /**
+     * Make a block current in the given epoch before writing to it,
+     * zeroing its length bytes at start if it was last written in an
+     * earlier one.
+     *
+     * @return whether the block was out of date.
+     */
+    private boolean claim(long block, long stampAt, int epoch, long start,
+                          int length)
+    {
+        long at = stampAt + 4 * block;
+        if (getInt(at) == epoch)
+        {
+            return false;
+        }
+        zero(start, start + length);
+        putInt(at, epoch);
+        return true;
+    }
+
+    /**
+     * Start a new epoch for the stamps at stampAt, keeping it in the
+     * header at epochAt.  Only when the epoch is about to wrap are the
+     * stamps themselves cleared.
+     *
+     * @return the new epoch.
+     */
+    private int nextEpoch(int epochAt, long stampAt)
+    {
+        int epoch = getInt(epochAt) + 1;
+        if (epoch == Integer.MAX_VALUE)
+        {
+            zero(stampAt, align(stampAt + 4 * blocks));
+            epoch = 1;
+        }
+        putInt(epochAt, epoch);
+        return epoch;
+    }
+
+    /**
+     * Zero the bytes from start up to end, both multiples of 8.
+     */
+    private void zero(long start, long end)
+    {
+        for (long at = start; at < end; at += 8)
+        {
+            putLong(at, 0L);
+        }
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + 7) & ~7L;
+    }
+
+    private short getShort(long at)
+    {
+        return segments[(int) (at >>> SEGMENT_BITS)]
+            .getShort((int) (at & SEGMENT_MASK));
+    }
+
+    private void putShort(long at, short value)
+    {
+        segments[(int) (at >>> SEGMENT_BITS)]
+            .putShort((int) (at & SEGMENT_MASK), value);
+    }
+
+    private int getInt(long at)
+    {
+        return segments[(int) (at >>> SEGMENT_BITS)]
+            .getInt((int) (at & SEGMENT_MASK));
+    }
+
+    private void putInt(long at, int value)
+    {
+        segments[(int) (at >>> SEGMENT_BITS)]
+            .putInt((int) (at & SEGMENT_MASK), value);
+    }
+
+    private long getLong(long at)
+    {
+        return segments[(int) (at >>> SEGMENT_BITS)]
+            .getLong((int) (at & SEGMENT_MASK));
+    }
+
+    private void putLong(long at, long value)
+    {
+        segments[(int) (at >>> SEGMENT_BITS)]
+            .putLong((int) (at & SEGMENT_MASK), value);
+    }
+}
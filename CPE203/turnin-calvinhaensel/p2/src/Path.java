@@ -0,0 +1,130 @@
+/**
+ * A path found by PathFinder, which a mover follows one step per
+ * activity.  Cells are row-major indexes into the grid.
+ */
+final class Path
+{
+    private final Entity target;
+    private final Point targetPos;
+    private final int width;
+    private final int[] cells;
+    private int next;
+    private int at;         // the cell the mover should be standing on
+
+    // for a search that gave up without finding any step closer: what
+    // it could step onto, the corners of the cells it looked at, and
+    // their occupancy stamp then; see PathFinder.nextStep
+    private PathFinder.Passability blockedFor;
+    private int x0, y0, x1, y1;
+    private long occupancy;
+
+    public Path(Entity target, Point start, int width, int[] cells)
+    {
+        this(target, target.position, width, cells, 0,
+             start.getY() * width + start.getX());
+    }
+
+    /**
+     * Recreate a path part way along, as saved by Snapshot.
+     */
+    public Path(Entity target, Point targetPos, int width, int[] cells,
+                int next, int at)
+    {
+        this.target = target;
+        this.targetPos = targetPos;
+        this.width = width;
+        this.cells = cells;
+        this.next = next;
+        this.at = at;
+    }
+
+    /*
+     * Accessors for Snapshot.
+     */
+
+    public Entity getTarget()
+    {
+        return target;
+    }
+
+    public Point getTargetPos()
+    {
+        return targetPos;
+    }
+
+    public int[] getCells()
+    {
+        return cells;
+    }
+
+    public int getNext()
+    {
+        return next;
+    }
+
+    public int getAt()
+    {
+        return at;
+    }
+
+    /**
+     * Whether the rest of this path is still meant for mover heading to
+     * target: the target is the same one, and hasn't moved or been
+     * removed, and the mover is where the path left it.
+     */
+    public boolean isValidFor(Entity mover, Entity target)
+    {
+        return this.target == target
+            && targetPos.equals(target.position)
+            && mover.position.getY() * width + mover.position.getX() == at;
+    }
+
+    /**
+     * Note that this path is empty because the search for it gave up,
+     * having looked at the cells from (x0, y0) to (x1, y1).
+     */
+    public void setBlocked(PathFinder.Passability passability,
+                           int x0, int y0, int x1, int y1,
+                           WorldModel world)
+    {
+        this.blockedFor = passability;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.occupancy = world.occupancyStamp(x0, y0, x1, y1);
+    }
+
+    /**
+     * Whether searching again for mover would just give up in the same
+     * way: this path was blocked, is still valid for mover heading to
+     * target, and nothing it looked at has changed since.
+     */
+    public boolean isStillBlocked(Entity mover, Entity target,
+                                  PathFinder.Passability passability,
+                                  WorldModel world)
+    {
+        return blockedFor == passability
+            && isValidFor(mover, target)
+            && world.occupancyStamp(x0, y0, x1, y1) == occupancy;
+    }
+
+    public boolean isFinished()
+    {
+        return next == cells.length;
+    }
+
+    /**
+     * @return the next cell on the path, or -1 if there are none left.
+     */
+    public int peek()
+    {
+        return isFinished() ? -1 : cells[next];
+    }
+
+    public int advance()
+    {
+        at = cells[next++];
+        return at;
+    }
+}
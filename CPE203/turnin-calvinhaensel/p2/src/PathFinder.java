@@ -0,0 +1,375 @@
+import java.util.Arrays;
+
+/**
+ * Finds paths across a WorldModel with A*, moving one cell at a time
+ * horizontally or vertically.  Each mover remembers the last path it
+ * was given, and keeps following it for as long as it heads for the
+ * same target and the next cell on it is still free.  A new search is
+ * only done when that stops being true, i.e. when the occupancy right
+ * in front of the mover changes, or it picks a new target.  A search
+ * that gives up without getting the mover any closer isn't repeated
+ * until something it looked at changes.
+ *
+ * The search state is kept in a table keyed by cell, so it costs what
+ * the searches touch rather than the grid's area.  The table is reused
+ * between searches, so once it has grown to fit them a search
+ * allocates nothing but the path it returns.
+ */
+final class PathFinder
+{
+    /**
+     * What a mover may step onto.
+     */
+    public enum Passability
+    {
+        EMPTY,          // only empty cells (miners)
+        EMPTY_OR_ORE    // empty cells, or ore, which is trampled (blobs)
+    }
+
+    /**
+     * A search gives up after expanding this many cells, or
+     * EXPANSIONS_PER_STEP times the distance to the target if that is
+     * more, and heads for the closest cell it reached instead.  This
+     * bounds the cost of looking for a target that can't be reached.
+     */
+    private static final int MIN_EXPANSIONS = 1024;
+    private static final int EXPANSIONS_PER_STEP = 16;
+
+    private static final int INITIAL_SLOTS = 1 << 12;
+
+    // neighbour offsets, horizontal first, as the old greedy step was
+    private static final int[] DX = { -1, 1, 0, 0 };
+    private static final int[] DY = { 0, 0, -1, 1 };
+
+    private final WorldModel world;
+    private final int width;
+    private final int height;
+
+    // per-cell search state, in an open-addressed table of slots keyed
+    // by cell; a slot is only in use if its stamp matches the current
+    // search, so starting a search clears nothing
+    private int[] slotCell;
+    private int[] stamp;
+    private int[] cost;
+    private int[] parent;
+    private boolean[] closed;
+    private int slotBits;
+    private int used;
+    private int search;
+
+    // the open set: a binary heap of cells, ordered by key
+    private int[] openCells;
+    private long[] openKeys;
+    private int openSize;
+
+    public PathFinder(WorldModel world)
+    {
+        this.world = world;
+        this.width = world.size.width;
+        this.height = world.size.height;
+        this.slotBits = 0;
+        this.used = 0;
+        this.search = 0;
+        this.openCells = new int[64];
+        this.openKeys = new long[64];
+        this.openSize = 0;
+    }
+
+    /**
+     * Find where mover should step next to get next to target.
+     *
+     * @return the cell to move to, or the mover's own cell if it can't
+     *         get any closer right now.
+     */
+    public int nextStep(Entity mover, Entity target,
+                        Passability passability)
+    {
+        Path path = mover.path;
+        if (path == null || path.isFinished()
+            || !path.isValidFor(mover, target)
+            || !canEnter(path.peek(), passability))
+        {
+            if (path != null
+                && path.isStillBlocked(mover, target, passability, world))
+            {
+                return world.cellOf(mover.position);
+            }
+            path = findPath(mover.position, target, passability);
+            mover.path = path;
+        }
+
+        if (path.isFinished())
+        {
+            return world.cellOf(mover.position);
+        }
+        return path.advance();
+    }
+
+    /**
+     * Run A* from start to any cell next to target.  If the search gives
+     * up, the path leads to the cell it reached that was closest to the
+     * target, so the mover still makes progress.
+     */
+    private Path findPath(Point start, Entity target,
+                          Passability passability)
+    {
+        int tx = target.position.getX();
+        int ty = target.position.getY();
+        int startCell = world.cellOf(start);
+
+        nextSearch();
+        openSize = 0;
+        visit(startCell, 0, -1);
+        push(startCell, heuristic(startCell, tx, ty), 0);
+
+        int best = startCell;
+        int bestH = heuristic(startCell, tx, ty);
+        int limit = Math.max(MIN_EXPANSIONS,
+                             EXPANSIONS_PER_STEP * bestH);
+        int expanded = 0;
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+
+        while (openSize > 0 && expanded < limit)
+        {
+            int cell = pop();
+            int slot = find(cell);
+            if (closed[slot])
+            {
+                continue;
+            }
+            closed[slot] = true;
+            expanded++;
+
+            int h = heuristic(cell, tx, ty);
+            if (h < bestH)
+            {
+                best = cell;
+                bestH = h;
+            }
+            if (h == 0)
+            {
+                break;
+            }
+
+            int x = cell % width;
+            int y = cell / width;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            int g = cost[slot] + 1;
+            for (int i = 0; i < DX.length; i++)
+            {
+                int nx = x + DX[i];
+                int ny = y + DY[i];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height)
+                {
+                    continue;
+                }
+                int next = ny * width + nx;
+                if (!canEnter(next, passability))
+                {
+                    continue;
+                }
+                int nextSlot = find(next);
+                if (nextSlot < 0 || g < cost[nextSlot])
+                {
+                    visit(next, g, cell);
+                    push(next, g + heuristic(next, tx, ty), g);
+                }
+            }
+        }
+
+        Path path = new Path(target, start, width, buildPath(best));
+        if (best == startCell && bestH > 0)
+        {
+            // the search only ever read the cells it expanded and their
+            // neighbours
+            path.setBlocked(passability,
+                            Math.max(minX - 1, 0), Math.max(minY - 1, 0),
+                            Math.min(maxX + 1, width - 1),
+                            Math.min(maxY + 1, height - 1), world);
+        }
+        return path;
+    }
+
+    /**
+     * The number of steps from cell to being next to (tx, ty), ignoring
+     * anything in the way: the Manhattan distance less one.
+     */
+    private int heuristic(int cell, int tx, int ty)
+    {
+        int x = cell % width;
+        int y = cell / width;
+        return Math.abs(x - tx) + Math.abs(y - ty) - 1;
+    }
+
+    private int[] buildPath(int end)
+    {
+        int length = cost[find(end)];
+        int[] cells = new int[length];
+        for (int cell = end, i = length - 1; i >= 0; i--)
+        {
+            cells[i] = cell;
+            cell = parent[find(cell)];
+        }
+        return cells;
+    }
+
+    private boolean canEnter(int cell, Passability passability)
+    {
+        if (!world.isOccupied(cell))
+        {
+            return true;
+        }
+        return passability == Passability.EMPTY_OR_ORE
+            && world.getOccupant(cell).kind == EntityKind.ORE;
+    }
+
+    private void nextSearch()
+    {
+        if (stamp == null)
+        {
+            allocateSlots(INITIAL_SLOTS);
+        }
+        used = 0;
+        search++;
+        if (search == Integer.MAX_VALUE)
+        {
+            // stamps are about to wrap; start them again from scratch
+            Arrays.fill(stamp, 0);
+            search = 1;
+        }
+    }
+
+    private void visit(int cell, int g, int from)
+    {
+        int slot = find(cell);
+        if (slot < 0)
+        {
+            if (2 * (used + 1) > stamp.length)
+            {
+                growSlots();
+            }
+            slot = ~find(cell);
+            slotCell[slot] = cell;
+            stamp[slot] = search;
+            closed[slot] = false;
+            used++;
+        }
+        cost[slot] = g;
+        parent[slot] = from;
+    }
+
+    /**
+     * @return the slot holding cell in this search, or if there is none,
+     *         the complement of the free slot it would go in.
+     */
+    private int find(int cell)
+    {
+        int mask = stamp.length - 1;
+        int slot = (cell * 0x9e3779b9) >>> (32 - slotBits);
+        while (stamp[slot] == search)
+        {
+            if (slotCell[slot] == cell)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    private void allocateSlots(int count)
+    {
+        slotCell = new int[count];
+        stamp = new int[count];
+        cost = new int[count];
+        parent = new int[count];
+        closed = new boolean[count];
+        slotBits = Integer.numberOfTrailingZeros(count);
+    }
+
+    /**
+     * Double the table, moving this search's slots over.
+     */
+    private void growSlots()
+    {
+        int[] oldCell = slotCell;
+        int[] oldStamp = stamp;
+        int[] oldCost = cost;
+        int[] oldParent = parent;
+        boolean[] oldClosed = closed;
+        allocateSlots(oldStamp.length * 2);
+        for (int i = 0; i < oldStamp.length; i++)
+        {
+            if (oldStamp[i] == search)
+            {
+                int slot = ~find(oldCell[i]);
+                slotCell[slot] = oldCell[i];
+                stamp[slot] = search;
+                cost[slot] = oldCost[i];
+                parent[slot] = oldParent[i];
+                closed[slot] = oldClosed[i];
+            }
+        }
+    }
+
+    /*
+     * The open set allows duplicates; stale entries are skipped when
+     * popped, since their cell is already closed.  Keys order by f,
+     * then by larger g, so ties go to the cell further along.
+     */
+
+    private void push(int cell, int f, int g)
+    {
+        if (openSize == openCells.length)
+        {
+            openCells = Arrays.copyOf(openCells, openSize * 2);
+            openKeys = Arrays.copyOf(openKeys, openSize * 2);
+        }
+        long key = ((long) f << 32) | (Integer.MAX_VALUE - g);
+        int k = openSize++;
+        while (k > 0)
+        {
+            int up = (k - 1) >>> 1;
+            if (openKeys[up] <= key)
+            {
+                break;
+            }
+            openCells[k] = openCells[up];
+            openKeys[k] = openKeys[up];
+            k = up;
+        }
+        openCells[k] = cell;
+        openKeys[k] = key;
+    }
+
+    private int pop()
+    {
+        int result = openCells[0];
+        int n = --openSize;
+        int cell = openCells[n];
+        long key = openKeys[n];
+        int k = 0;
+        int half = n >>> 1;
+        while (k < half)
+        {
+            int child = 2 * k + 1;
+            if (child + 1 < n && openKeys[child + 1] < openKeys[child])
+            {
+                child++;
+            }
+            if (key <= openKeys[child])
+            {
+                break;
+            }
+            openCells[k] = openCells[child];
+            openKeys[k] = openKeys[child];
+            k = child;
+        }
+        openCells[k] = cell;
+        openKeys[k] = key;
+        return result;
+    }
+}
@@ -44,10 +44,14 @@ final class Point
         return result;
     }
 
-    public int distanceSquared(Point p1, Point p2)
+    /**
+     * In a long, since on a large grid the square of the distance
+     * between two cells doesn't fit in an int.
+     */
+    public long distanceSquared(Point p1, Point p2)
     {
-        int deltaX = p1.getX() - p2.getX();
-        int deltaY = p1.getY() - p2.getX();
+        long deltaX = (long) p1.getX() - p2.getX();
+        long deltaY = (long) p1.getY() - p2.getY();
 
         return deltaX * deltaX + deltaY * deltaY;
     }
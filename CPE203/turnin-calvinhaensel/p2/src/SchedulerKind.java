@@ -0,0 +1,9 @@
+/**
+ * Selects the queue implementation an EventSchedule runs on.  Both
+ * give the same order of events; they differ only in performance.
+ */
+enum SchedulerKind
+{
+    HEAP,
+    TIMING_WHEEL
+}
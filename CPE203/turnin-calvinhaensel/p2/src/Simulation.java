@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import edu.calpoly.spritely.Size;
+
+/**
+ * One independent run of the virtual world: the model, the schedule
+ * of events acting on it, and the assets its entities are drawn with.
+ * Nothing here is static, so any number of simulations can run side
+ * by side in one JVM.  They share only the immutable WorldAssets.
+ */
+final class Simulation
+{
+    public final WorldAssets assets;
+    public final WorldModel model;
+    public final EventSchedule eventSchedule;
+
+    /**
+     * Create an empty simulation.
+     *
+     * @param seed       The seed for the world's random numbers.
+     * @param timeScale  See EventSchedule.
+     * @param kind       The event queue implementation to use.
+     */
+    public Simulation(WorldAssets assets, Size size, long seed,
+                      double timeScale, SchedulerKind kind)
+    {
+        this(assets, size, seed, timeScale, kind,
+             WorldGrid.create(size.width, size.height));
+    }
+
+    /**
+     * Create an empty simulation whose world is stored in grid, which
+     * must be empty and of the given size.
+     */
+    public Simulation(WorldAssets assets, Size size, long seed,
+                      double timeScale, SchedulerKind kind, WorldGrid grid)
+    {
+        this.assets = assets;
+        this.model = new WorldModel(size, seed, assets, grid);
+        this.eventSchedule = new EventSchedule(timeScale, kind);
+    }
+
+    /**
+     * Create a simulation of the default world, VirtualWorld.WORLD_FILE,
+     * with its initial actions scheduled and ready to run.
+     */
+    public static Simulation createDefault(WorldAssets assets, long seed,
+                                           double timeScale,
+                                           SchedulerKind kind)
+        throws IOException
+    {
+        return createDefault(assets, seed, timeScale, kind, WorldGrid::create,
+                             null);
+    }
+
+    /**
+     * As above, storing the world in a grid made by grids, and loading
+     * it on pool if that isn't null.
+     */
+    public static Simulation createDefault(WorldAssets assets, long seed,
+                                           double timeScale,
+                                           SchedulerKind kind,
+                                           WorldFile.GridFactory grids,
+                                           ForkJoinPool pool)
+        throws IOException
+    {
+        return load(VirtualWorld.WORLD_FILE.toPath(), assets, seed, timeScale,
+                    kind, grids, pool);
+    }
+
+    /**
+     * Create a simulation of the world in a world file, with its initial
+     * actions scheduled and ready to run.  See WorldFile.
+     */
+    public static Simulation load(java.nio.file.Path path, WorldAssets assets,
+                                  long seed, double timeScale,
+                                  SchedulerKind kind,
+                                  WorldFile.GridFactory grids,
+                                  ForkJoinPool pool)
+        throws IOException
+    {
+        Simulation simulation = WorldFile.load(path, assets, seed, timeScale,
+                                               kind, grids, pool);
+        scheduleInitialActions(simulation.model, simulation.eventSchedule);
+        return simulation;
+    }
+
+    /**
+     * Start recording metrics for this simulation, if it isn't already.
+     *
+     * @return the metrics being recorded.
+     */
+    public SimulationMetrics enableMetrics()
+    {
+        if (eventSchedule.metrics == null)
+        {
+            SimulationMetrics metrics = new SimulationMetrics();
+            eventSchedule.metrics = metrics;
+            model.metrics = metrics;
+        }
+        return eventSchedule.metrics;
+    }
+
+    /**
+     * Run animations off an AnimationClock from now on; see
+     * EventSchedule.useAnimationClock.
+     */
+    public void useAnimationClock()
+    {
+        useAnimationClock(false);
+    }
+
+    public void useAnimationClock(boolean lazy)
+    {
+        eventSchedule.useAnimationClock(model.entities, model, lazy);
+    }
+
+    /**
+     * Advance the simulation to the given time, in ms.
+     */
+    public void advanceTo(double time)
+    {
+        eventSchedule.processEvents(time);
+    }
+
+    /**
+     * Advance the simulation towards the given time, in ms, taking at
+     * most about budgetNanos of wall time; see
+     * EventSchedule.processEvents.
+     *
+     * @return whether it got there.
+     */
+    public boolean advanceTo(double time, long budgetNanos)
+    {
+        return eventSchedule.processEvents(time, budgetNanos);
+    }
+
+    /**
+     * Schedule the first actions of every entity in model, in one batch
+     * (see EventSchedule.beginBulk), in the order they were added.
+     */
+    public static void scheduleInitialActions(WorldModel model,
+					      EventSchedule eventSchedule)
+    {
+        eventSchedule.beginBulk();
+        for (Entity entity : model.entities)
+        {
+            entity.scheduleActions(entity, eventSchedule, model);
+        }
+        eventSchedule.endBulk();
+    }
+}
@@ -0,0 +1,349 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts and timings of what a simulation spends its time on: events
+ * run by ActionKind and EntityKind, how long activities take, how deep
+ * the event queue gets, how many events unscheduleAllEvents cancels,
+ * how far findNearest has to look, and how far the schedule is
+ * falling behind the clock.
+ *
+ * Nothing is recorded unless a Simulation has been given metrics with
+ * enableMetrics; until then each place that would record something
+ * costs one null check.  Recording is safe from any thread, so the
+ * numbers can be read over JMX (see register) or printed with
+ * getReport while the simulation runs.
+ */
+final class SimulationMetrics implements SimulationMetricsMXBean
+{
+    private static final ActionKind[] ACTION_KINDS = ActionKind.values();
+    private static final EntityKind[] ENTITY_KINDS = EntityKind.values();
+
+    private final LongAdder[] byActionKind;
+    private final LongAdder[] byEntityKind;
+    private final LatencyHistogram[] activityLatency;
+    private volatile int queueDepth;
+    private volatile int maxQueueDepth;
+    private final LongAdder cancellations;
+    private final LongAdder findNearestCalls;
+    private final LatencyHistogram findNearestScan;
+
+    /**
+     * Lag, in ms, at or above which the schedule counts as lagging.
+     */
+    public static final double DEFAULT_LAG_ALARM_MS = 500.0;
+
+    private volatile double lagMillis;
+    private volatile double maxLagMillis;
+    private final LongAdder overBudget;
+    private volatile double lagAlarmMillis;
+    private volatile boolean lagging;
+    private final LongAdder lagAlarms;
+
+    public SimulationMetrics()
+    {
+        this.byActionKind = new LongAdder[ACTION_KINDS.length];
+        for (int i = 0; i < byActionKind.length; i++)
+        {
+            byActionKind[i] = new LongAdder();
+        }
+        this.byEntityKind = new LongAdder[ENTITY_KINDS.length];
+        this.activityLatency = new LatencyHistogram[ENTITY_KINDS.length];
+        for (int i = 0; i < byEntityKind.length; i++)
+        {
+            byEntityKind[i] = new LongAdder();
+            activityLatency[i] = new LatencyHistogram();
+        }
+        this.cancellations = new LongAdder();
+        this.findNearestCalls = new LongAdder();
+        this.findNearestScan = new LatencyHistogram();
+        this.overBudget = new LongAdder();
+        this.lagAlarmMillis = DEFAULT_LAG_ALARM_MS;
+        this.lagAlarms = new LongAdder();
+    }
+
+    /*
+     * Recording, called from the simulation.
+     */
+
+    /**
+     * An event is about to run action.
+     */
+    public void eventExecuted(Action action)
+    {
+        byActionKind[action.kind.ordinal()].increment();
+        byEntityKind[action.entity.kind.ordinal()].increment();
+    }
+
+    /**
+     * An AnimationClock moved entity to its next image.
+     */
+    public void animationRan(Entity entity)
+    {
+        byActionKind[ActionKind.ANIMATION.ordinal()].increment();
+        byEntityKind[entity.kind.ordinal()].increment();
+    }
+
+    public void activityTook(EntityKind kind, long nanos)
+    {
+        activityLatency[kind.ordinal()].record(nanos);
+    }
+
+    /**
+     * The event queue holds depth events.  Only one thread, the one
+     * running the schedule, calls this.
+     */
+    public void queueDepth(int depth)
+    {
+        queueDepth = depth;
+        if (depth > maxQueueDepth)
+        {
+            maxQueueDepth = depth;
+        }
+    }
+
+    public void eventCancelled()
+    {
+        cancellations.increment();
+    }
+
+    /**
+     * findNearest was called, and compared scanned entities.
+     */
+    public void findNearestScanned(int scanned)
+    {
+        findNearestCalls.increment();
+        findNearestScan.record(scanned);
+    }
+
+    /**
+     * processEvents has returned, lagMs behind the time it was asked to
+     * reach, having run out of time budget if overBudget.  Each time
+     * the lag reaches the alarm level after being below it counts as
+     * one lag alarm.  Only the thread running the schedule calls this.
+     */
+    public void lag(double lagMs, boolean overBudget)
+    {
+        lagMillis = lagMs;
+        if (lagMs > maxLagMillis)
+        {
+            maxLagMillis = lagMs;
+        }
+        if (overBudget)
+        {
+            this.overBudget.increment();
+        }
+        boolean nowLagging = lagMs >= lagAlarmMillis;
+        if (nowLagging && !lagging)
+        {
+            lagAlarms.increment();
+        }
+        lagging = nowLagging;
+    }
+
+    /**
+     * Make these metrics visible over JMX, under
+     * minimax:type=Simulation,name=name.
+     *
+     * @return the name they were registered under, for unregister.
+     */
+    public ObjectName register(String name) throws JMException
+    {
+        ObjectName objectName = new ObjectName(
+            "minimax:type=Simulation,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer()
+            .unregisterMBean(objectName);
+    }
+
+    /*
+     * Reading; see SimulationMetricsMXBean.
+     */
+
+    @Override
+    public long getEventsExecuted()
+    {
+        long total = 0;
+        for (LongAdder count : byActionKind)
+        {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getEventsByActionKind()
+    {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (ActionKind kind : ACTION_KINDS)
+        {
+            result.put(kind.name(), byActionKind[kind.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getEventsByEntityKind()
+    {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (EntityKind kind : ENTITY_KINDS)
+        {
+            result.put(kind.name(), byEntityKind[kind.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, String> getActivityLatency()
+    {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (EntityKind kind : ENTITY_KINDS)
+        {
+            LatencyHistogram latency = activityLatency[kind.ordinal()];
+            if (latency.getCount() > 0)
+            {
+                result.put(kind.name(), latency.toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the histogram of activity latencies for one kind.
+     */
+    public LatencyHistogram getActivityLatency(EntityKind kind)
+    {
+        return activityLatency[kind.ordinal()];
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    @Override
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    @Override
+    public long getCancellations()
+    {
+        return cancellations.sum();
+    }
+
+    @Override
+    public long getFindNearestCalls()
+    {
+        return findNearestCalls.sum();
+    }
+
+    @Override
+    public String getFindNearestScanLength()
+    {
+        return findNearestScan.toString();
+    }
+
+    @Override
+    public double getLagMillis()
+    {
+        return lagMillis;
+    }
+
+    @Override
+    public double getMaxLagMillis()
+    {
+        return maxLagMillis;
+    }
+
+    @Override
+    public long getFramesOverBudget()
+    {
+        return overBudget.sum();
+    }
+
+    @Override
+    public boolean isLagging()
+    {
+        return lagging;
+    }
+
+    @Override
+    public long getLagAlarms()
+    {
+        return lagAlarms.sum();
+    }
+
+    @Override
+    public double getLagAlarmMillis()
+    {
+        return lagAlarmMillis;
+    }
+
+    @Override
+    public void setLagAlarmMillis(double millis)
+    {
+        lagAlarmMillis = millis;
+    }
+
+    @Override
+    public String getReport()
+    {
+        StringBuilder report = new StringBuilder();
+        report.append("events ").append(getEventsExecuted())
+            .append(' ').append(getEventsByActionKind())
+            .append('\n');
+        report.append("events by entity ").append(getEventsByEntityKind())
+            .append('\n');
+        for (Map.Entry<String, String> entry
+                 : getActivityLatency().entrySet())
+        {
+            report.append("activity ").append(entry.getKey())
+                .append(" ns ").append(entry.getValue()).append('\n');
+        }
+        report.append("queue depth ").append(getQueueDepth())
+            .append(" max ").append(getMaxQueueDepth()).append('\n');
+        report.append("cancellations ").append(getCancellations())
+            .append('\n');
+        report.append("findNearest scanned ")
+            .append(getFindNearestScanLength()).append('\n');
+        report.append(String.format(
+            "lag %.1f ms max %.1f over budget %d alarms %d%s%n",
+            getLagMillis(), getMaxLagMillis(), getFramesOverBudget(),
+            getLagAlarms(), isLagging() ? " LAGGING" : ""));
+        return report.toString();
+    }
+
+    @Override
+    public void reset()
+    {
+        for (LongAdder count : byActionKind)
+        {
+            count.reset();
+        }
+        for (int i = 0; i < ENTITY_KINDS.length; i++)
+        {
+            byEntityKind[i].reset();
+            activityLatency[i].reset();
+        }
+        maxQueueDepth = queueDepth;
+        cancellations.reset();
+        findNearestCalls.reset();
+        findNearestScan.reset();
+        maxLagMillis = lagMillis;
+        overBudget.reset();
+        lagAlarms.reset();
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Map;
+
+/**
+ * What SimulationMetrics shows through JMX, e.g. in jconsole.  Counts
+ * are since the metrics were made or last reset; latencies are in ns.
+ */
+public interface SimulationMetricsMXBean
+{
+    long getEventsExecuted();
+
+    Map<String, Long> getEventsByActionKind();
+
+    Map<String, Long> getEventsByEntityKind();
+
+    /**
+     * Summaries of how long each kind of entity's activity takes, as
+     * given by LatencyHistogram.toString.
+     */
+    Map<String, String> getActivityLatency();
+
+    int getQueueDepth();
+
+    int getMaxQueueDepth();
+
+    long getCancellations();
+
+    long getFindNearestCalls();
+
+    /**
+     * How many entities findNearest compared, per call.
+     */
+    String getFindNearestScanLength();
+
+    /**
+     * How far behind the clock, in ms, the schedule was left by the
+     * last call to processEvents.
+     */
+    double getLagMillis();
+
+    double getMaxLagMillis();
+
+    /**
+     * How many calls to processEvents ran out of time budget.
+     */
+    long getFramesOverBudget();
+
+    /**
+     * Whether the lag is at or above getLagAlarmMillis.
+     */
+    boolean isLagging();
+
+    /**
+     * How many times the schedule has started lagging.
+     */
+    long getLagAlarms();
+
+    double getLagAlarmMillis();
+
+    void setLagAlarmMillis(double millis);
+
+    /**
+     * Everything above as text, one item per line.
+     */
+    String getReport();
+
+    void reset();
+}
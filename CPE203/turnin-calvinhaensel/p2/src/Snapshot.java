@@ -0,0 +1,650 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import edu.calpoly.spritely.Size;
+import edu.calpoly.spritely.Tile;
+
+/**
+ * Saves a running Simulation to a compact binary form, and brings it
+ * back.  A snapshot holds everything that decides what happens next:
+ * the background, every entity and its fields, every pending event
+ * (with its time, sequence number, ActionKind and repeatCount) or
+ * animation on the animation clock, the
+ * random number generator's state, and the path each mover is part
+ * way along and the blacksmith field, since those steer the movers.
+ * A restored simulation carries on exactly as the original would have.
+ *
+ * The layout, all little-endian:
+ *
+ *   header      magic, version, width, height, seed, random state,
+ *               scheduler kind, byte 1 if animations run off an
+ *               AnimationClock (2 if it is lazy), time scale, current
+ *               time, next sequence
+ *   background  runs of (int count, byte tile), tiles numbered as in
+ *               backgroundCode
+ *   entities    int count, then per entity: byte kind, int x, y,
+ *               resourceLimit, resourceCount, actionPeriod,
+ *               animationPeriod, tileIndex
+ *   events      int count, then per event: int entity, byte action
+ *               kind, int repeatCount, double time due, long sequence;
+ *               each entity's events oldest first.  The time remaining
+ *               is the time due less the current time in the header;
+ *               saving the time due itself keeps it exact.
+ *   animations  int count, then per animated entity on the clock: int
+ *               entity, int repeatCount, double time due (for a lazy
+ *               clock, those it was added with)
+ *   paths       int count, then per path: int mover, int target, int
+ *               target x, y, int next, int at, int length, int cells...
+ *   field       byte 1 if the blacksmith field is saved, then int count
+ *               of pages it has reached, then per page: int page, then
+ *               per cell of the page int distance, int nearest entity
+ *               (or -1)
+ *
+ * Entities are referred to by their place in the entity list.
+ * Writing goes through a channel a buffer at a time.  Reading a file
+ * maps it, so it is read straight from the page cache.
+ */
+final class Snapshot
+{
+    private static final int MAGIC = 0x4d4e5353;    // "MNSS"
+    private static final int VERSION = 3;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final byte NO_TILE = 0;
+    private static final byte GRASS = 1;
+    private static final byte ROCKS = 2;
+
+    private Snapshot()
+    {
+    }
+
+    /**
+     * Write a snapshot of simulation to a file, replacing it if it is
+     * already there.
+     */
+    public static void save(Simulation simulation, java.nio.file.Path path)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            write(simulation, channel);
+        }
+    }
+
+    /**
+     * Restore a simulation from a file written by save.
+     */
+    public static Simulation load(java.nio.file.Path path, WorldAssets assets)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ))
+        {
+            if (channel.size() <= Integer.MAX_VALUE)
+            {
+                ByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return read(new Input(mapped, null), assets);
+            }
+            return read(channel, assets);
+        }
+    }
+
+    public static void write(Simulation simulation,
+                             WritableByteChannel channel)
+        throws IOException
+    {
+        WorldModel world = simulation.model;
+        EventSchedule schedule = simulation.eventSchedule;
+        Output out = new Output(channel);
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(world.size.width);
+        out.putInt(world.size.height);
+        out.putLong(world.seed);
+        out.putLong(world.random.getState());
+        out.putByte(schedulerKind(schedule).ordinal());
+        AnimationClock clock = schedule.getAnimationClock();
+        out.putByte(clock == null ? 0 : clock.isLazy() ? 2 : 1);
+        out.putDouble(schedule.timeScale);
+        out.putDouble(schedule.currentTime);
+        out.putLong(schedule.getNextSequence());
+
+        writeBackground(world, simulation.assets, out);
+
+        // number the entities in list order, by their store id
+        int[] index = new int[world.store.limit()];
+        List<Entity> entities = new ArrayList<>(world.entities);
+        out.putInt(entities.size());
+        for (int i = 0; i < entities.size(); i++)
+        {
+            Entity e = entities.get(i);
+            index[e.id] = i;
+            out.putByte(e.kind.ordinal());
+            out.putInt(e.position.getX());
+            out.putInt(e.position.getY());
+            out.putInt(e.resourceLimit);
+            out.putInt(e.resourceCount);
+            out.putInt(e.actionPeriod);
+            out.putInt(e.animationPeriod);
+            out.putInt(e.tileIndex);
+        }
+
+        writeEvents(entities, schedule, out);
+        writeAnimations(entities, schedule, out);
+        writePaths(entities, index, out);
+        writeField(world, index, out);
+        out.flush();
+    }
+
+    public static Simulation read(ReadableByteChannel channel,
+                                  WorldAssets assets)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.limit(0);
+        return read(new Input(buffer, channel), assets);
+    }
+
+    private static Simulation read(Input in, WorldAssets assets)
+        throws IOException
+    {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION)
+        {
+            throw new IOException("not a snapshot");
+        }
+        int width = in.getInt();
+        int height = in.getInt();
+        long seed = in.getLong();
+        long randomState = in.getLong();
+        SchedulerKind kind = SchedulerKind.values()[in.getByte()];
+        int animationClock = in.getByte();
+        double timeScale = in.getDouble();
+
+        Simulation simulation = new Simulation(assets,
+            new Size(width, height), seed, timeScale, kind);
+        if (animationClock != 0)
+        {
+            simulation.useAnimationClock(animationClock == 2);
+        }
+        WorldModel world = simulation.model;
+        EventSchedule schedule = simulation.eventSchedule;
+        world.random.setState(randomState);
+        schedule.currentTime = in.getDouble();
+        schedule.setNextSequence(in.getLong());
+
+        readBackground(world, assets, in);
+
+        int count = in.getInt();
+        Entity[] entities = new Entity[count];
+        EntityKind[] kinds = EntityKind.values();
+        for (int i = 0; i < count; i++)
+        {
+            EntityKind entityKind = kinds[in.getByte()];
+            Point position = world.pointAt(world.cellOf(in.getInt(),
+                                                        in.getInt()));
+            int resourceLimit = in.getInt();
+            int resourceCount = in.getInt();
+            int actionPeriod = in.getInt();
+            int animationPeriod = in.getInt();
+            Entity e = new Entity(entityKind, position,
+                                  assets.tilesFor(entityKind),
+                                  resourceLimit, resourceCount,
+                                  actionPeriod, animationPeriod);
+            e.tileIndex = in.getInt();
+            entities[i] = e;
+        }
+        // they were all in the world together when saved
+        world.addEntities(entities, count);
+
+        readEvents(entities, world, schedule, in);
+        readAnimations(entities, schedule, in);
+        readPaths(entities, world, in);
+        readField(entities, world, in);
+        return simulation;
+    }
+
+    private static SchedulerKind schedulerKind(EventSchedule schedule)
+    {
+        return schedule.eventQueue instanceof TimingWheel
+            ? SchedulerKind.TIMING_WHEEL : SchedulerKind.HEAP;
+    }
+
+    private static void writeBackground(WorldModel world, WorldAssets assets,
+                                        Output out)
+        throws IOException
+    {
+        int cells = world.size.width * world.size.height;
+        int cell = 0;
+        while (cell < cells)
+        {
+            byte code = backgroundCode(world.getBackground(cell), assets);
+            int run = 1;
+            while (cell + run < cells
+                   && backgroundCode(world.getBackground(cell + run), assets)
+                      == code)
+            {
+                run++;
+            }
+            out.putInt(run);
+            out.putByte(code);
+            cell += run;
+        }
+    }
+
+    private static void readBackground(WorldModel world, WorldAssets assets,
+                                       Input in)
+        throws IOException
+    {
+        int cells = world.size.width * world.size.height;
+        int cell = 0;
+        boolean first = true;
+        while (cell < cells)
+        {
+            int run = in.getInt();
+            Tile tile = backgroundTile(in.getByte(), assets);
+            if (first && run == cells)
+            {
+                // cheap on every grid, and free on the lazy ones
+                world.fillBackground(tile);
+            }
+            else
+            {
+                for (int i = 0; i < run; i++)
+                {
+                    world.setBackground(cell + i, tile);
+                }
+            }
+            first = false;
+            cell += run;
+        }
+    }
+
+    private static byte backgroundCode(Tile tile, WorldAssets assets)
+    {
+        if (tile == assets.grassTile)
+        {
+            return GRASS;
+        }
+        else if (tile == assets.rocksTile)
+        {
+            return ROCKS;
+        }
+        else if (tile == null)
+        {
+            return NO_TILE;
+        }
+        throw new IllegalStateException("can't save background tile "
+                                        + tile);
+    }
+
+    private static Tile backgroundTile(int code, WorldAssets assets)
+    {
+        switch (code)
+        {
+        case GRASS:
+            return assets.grassTile;
+        case ROCKS:
+            return assets.rocksTile;
+        default:
+            return null;
+        }
+    }
+
+    private static void writeEvents(List<Entity> entities,
+                                    EventSchedule schedule, Output out)
+        throws IOException
+    {
+        int count = 0;
+        for (Entity e : entities)
+        {
+            for (Event event = e.pendingEvents; event != null;
+                 event = event.nextPending)
+            {
+                count++;
+            }
+        }
+        out.putInt(count);
+
+        for (int i = 0; i < entities.size(); i++)
+        {
+            // the pending list is newest first; write it oldest first
+            Event event = entities.get(i).pendingEvents;
+            while (event != null && event.nextPending != null)
+            {
+                event = event.nextPending;
+            }
+            for (; event != null; event = event.prevPending)
+            {
+                Action action = event.getAction();
+                out.putInt(i);
+                out.putByte(action.kind.ordinal());
+                out.putInt(action.repeatCount);
+                out.putDouble(event.time);
+                out.putLong(event.sequence);
+            }
+        }
+    }
+
+    private static void readEvents(Entity[] entities, WorldModel world,
+                                   EventSchedule schedule, Input in)
+        throws IOException
+    {
+        int count = in.getInt();
+        schedule.beginBulk();
+        for (int i = 0; i < count; i++)
+        {
+            Entity e = entities[in.getInt()];
+            ActionKind kind = ActionKind.values()[in.getByte()];
+            int repeatCount = in.getInt();
+            double time = in.getDouble();
+            long sequence = in.getLong();
+            Action action = kind == ActionKind.ANIMATION
+                ? e.createAnimationAction(e, world, repeatCount)
+                : e.createActivityAction(e, world);
+            schedule.restoreEvent(e, action, time, sequence);
+        }
+        schedule.endBulk();
+    }
+
+    private static void writeAnimations(List<Entity> entities,
+                                        EventSchedule schedule, Output out)
+        throws IOException
+    {
+        AnimationClock clock = schedule.getAnimationClock();
+        if (clock == null)
+        {
+            out.putInt(0);
+            return;
+        }
+        out.putInt(clock.size());
+        for (int i = 0; i < entities.size(); i++)
+        {
+            Entity e = entities.get(i);
+            if (e.animationPhase != null)
+            {
+                out.putInt(i);
+                out.putInt(e.animationRepeat);
+                out.putDouble(clock.nextTime(e));
+            }
+        }
+    }
+
+    private static void readAnimations(Entity[] entities,
+                                       EventSchedule schedule, Input in)
+        throws IOException
+    {
+        int count = in.getInt();
+        AnimationClock clock = schedule.getAnimationClock();
+        if (count > 0 && clock == null)
+        {
+            throw new IOException("animations saved without a clock");
+        }
+        for (int i = 0; i < count; i++)
+        {
+            Entity e = entities[in.getInt()];
+            int repeatCount = in.getInt();
+            double time = in.getDouble();
+            clock.add(e, time, e.getAnimationPeriod(), repeatCount);
+        }
+    }
+
+    private static void writePaths(List<Entity> entities, int[] index,
+                                   Output out)
+        throws IOException
+    {
+        // a path to an entity that has gone is no use to anyone, and is
+        // thrown away the next time it is looked at anyway
+        int count = 0;
+        for (Entity e : entities)
+        {
+            if (e.path != null
+                && e.path.getTarget().id != EntityStore.NO_ENTITY)
+            {
+                count++;
+            }
+        }
+        out.putInt(count);
+
+        for (int i = 0; i < entities.size(); i++)
+        {
+            Path path = entities.get(i).path;
+            if (path == null || path.getTarget().id == EntityStore.NO_ENTITY)
+            {
+                continue;
+            }
+            out.putInt(i);
+            out.putInt(index[path.getTarget().id]);
+            out.putInt(path.getTargetPos().getX());
+            out.putInt(path.getTargetPos().getY());
+            out.putInt(path.getNext());
+            out.putInt(path.getAt());
+            int[] cells = path.getCells();
+            out.putInt(cells.length);
+            for (int cell : cells)
+            {
+                out.putInt(cell);
+            }
+        }
+    }
+
+    private static void readPaths(Entity[] entities, WorldModel world,
+                                  Input in)
+        throws IOException
+    {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++)
+        {
+            Entity mover = entities[in.getInt()];
+            Entity target = entities[in.getInt()];
+            Point targetPos = world.pointAt(world.cellOf(in.getInt(),
+                                                         in.getInt()));
+            int next = in.getInt();
+            int at = in.getInt();
+            int[] cells = new int[in.getInt()];
+            for (int j = 0; j < cells.length; j++)
+            {
+                cells[j] = in.getInt();
+            }
+            mover.path = new Path(target, targetPos, world.size.width, cells,
+                                  next, at);
+        }
+    }
+
+    private static void writeField(WorldModel world, int[] index, Output out)
+        throws IOException
+    {
+        DistanceField field = world.blacksmithField;
+        if (field.isStale())
+        {
+            // it will be rebuilt from the grid, exactly as here
+            out.putByte(0);
+            return;
+        }
+        out.putByte(1);
+        int count = 0;
+        for (int page = 0; page < field.pageCount(); page++)
+        {
+            if (field.distancePage(page) != null)
+            {
+                count++;
+            }
+        }
+        out.putInt(count);
+        for (int page = 0; page < field.pageCount(); page++)
+        {
+            int[] distance = field.distancePage(page);
+            if (distance == null)
+            {
+                continue;
+            }
+            Entity[] nearest = field.nearestPage(page);
+            out.putInt(page);
+            for (int i = 0; i < DistanceField.PAGE_CELLS; i++)
+            {
+                out.putInt(distance[i]);
+                out.putInt(nearest[i] == null
+                           || nearest[i].id == EntityStore.NO_ENTITY
+                           ? -1 : index[nearest[i].id]);
+            }
+        }
+    }
+
+    private static void readField(Entity[] entities, WorldModel world,
+                                  Input in)
+        throws IOException
+    {
+        if (in.getByte() == 0)
+        {
+            return;
+        }
+        DistanceField field = world.blacksmithField;
+        int[][] distance = new int[field.pageCount()][];
+        Entity[][] nearest = new Entity[field.pageCount()][];
+        int count = in.getInt();
+        for (int j = 0; j < count; j++)
+        {
+            int page = in.getInt();
+            distance[page] = new int[DistanceField.PAGE_CELLS];
+            nearest[page] = new Entity[DistanceField.PAGE_CELLS];
+            for (int i = 0; i < DistanceField.PAGE_CELLS; i++)
+            {
+                distance[page][i] = in.getInt();
+                int e = in.getInt();
+                nearest[page][i] = e < 0 ? null : entities[e];
+            }
+        }
+        field.restore(distance, nearest);
+    }
+
+    /**
+     * Writes values through a buffer, handing it to the channel each
+     * time it fills.
+     */
+    private static final class Output
+    {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer;
+
+        Output(WritableByteChannel channel)
+        {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void putByte(int value) throws IOException
+        {
+            room(1);
+            buffer.put((byte) value);
+        }
+
+        void putInt(int value) throws IOException
+        {
+            room(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException
+        {
+            room(8);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException
+        {
+            room(8);
+            buffer.putDouble(value);
+        }
+
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void room(int bytes) throws IOException
+        {
+            if (buffer.remaining() < bytes)
+            {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Reads values from a buffer.  With a channel, the buffer is
+     * refilled from it as it runs out; without, the buffer is all
+     * there is, as when the whole file is mapped.
+     */
+    private static final class Input
+    {
+        private final ByteBuffer buffer;
+        private final ReadableByteChannel channel;
+
+        Input(ByteBuffer buffer, ReadableByteChannel channel)
+        {
+            this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.channel = channel;
+        }
+
+        int getByte() throws IOException
+        {
+            need(1);
+            return buffer.get();
+        }
+
+        int getInt() throws IOException
+        {
+            need(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException
+        {
+            need(8);
+            return buffer.getLong();
+        }
+
+        double getDouble() throws IOException
+        {
+            need(8);
+            return buffer.getDouble();
+        }
+
+        private void need(int bytes) throws IOException
+        {
+            if (buffer.remaining() >= bytes)
+            {
+                return;
+            }
+            if (channel == null)
+            {
+                throw new EOFException("snapshot is truncated");
+            }
+            buffer.compact();
+            while (buffer.position() < bytes)
+            {
+                if (channel.read(buffer) < 0)
+                {
+                    throw new EOFException("snapshot is truncated");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
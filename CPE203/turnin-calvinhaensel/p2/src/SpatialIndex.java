@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A uniform grid of buckets holding the entities of a single
+ * EntityKind.  WorldModel keeps one of these per kind so that
+ * findNearest only has to look at the buckets around a point,
+ * rather than at every entity in the world.
+ */
+final class SpatialIndex
+{
+    /**
+     * Width and height of a bucket, in grid cells.
+     */
+    public static final int BUCKET_SIZE = 8;
+
+    private final int columns;
+    private final int rows;
+    /**
+     * Buckets are kept in blocks of BLOCK_SIZE, and both blocks and
+     * buckets are only made when something is first put in them, so a
+     * huge, mostly empty world costs little.
+     */
+    private static final int BLOCK_BITS = 8;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private final List<List<List<Entity>>> blocks;
+    private int size;
+
+    /**
+     * How many entities the last call to nearest compared.
+     */
+    private int lastScanned;
+
+    public SpatialIndex(int width, int height)
+    {
+        this.columns = Math.max(1, (width + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        this.rows = Math.max(1, (height + BUCKET_SIZE - 1) / BUCKET_SIZE);
+        int count = ((columns * rows - 1) >>> BLOCK_BITS) + 1;
+        this.blocks = new ArrayList<>(Collections.nCopies(count, null));
+        this.size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int getLastScanned()
+    {
+        return lastScanned;
+    }
+
+    public void add(Entity entity)
+    {
+        int b = bucketIndex(entity.position);
+        List<List<Entity>> block = blocks.get(b >>> BLOCK_BITS);
+        if (block == null)
+        {
+            block = new ArrayList<>(Collections.nCopies(BLOCK_SIZE, null));
+            blocks.set(b >>> BLOCK_BITS, block);
+        }
+        List<Entity> bucket = block.get(b & (BLOCK_SIZE - 1));
+        if (bucket == null)
+        {
+            bucket = new ArrayList<>();
+            block.set(b & (BLOCK_SIZE - 1), bucket);
+        }
+        bucket.add(entity);
+        size++;
+    }
+
+    public void remove(Entity entity, Point pos)
+    {
+        List<Entity> bucket = bucket(bucketIndex(pos));
+        if (bucket == null)
+        {
+            return;
+        }
+        int i = bucket.indexOf(entity);
+        if (i >= 0)
+        {
+            // order within a bucket doesn't matter, so swap in the last one
+            int last = bucket.size() - 1;
+            bucket.set(i, bucket.get(last));
+            bucket.remove(last);
+            size--;
+        }
+    }
+
+    public void move(Entity entity, Point from, Point to)
+    {
+        if (bucketColumn(from.getX()) != bucketColumn(to.getX())
+            || bucketRow(from.getY()) != bucketRow(to.getY()))
+        {
+            remove(entity, from);
+            add(entity);
+        }
+    }
+
+    /**
+     * Find the entity closest to pos.  Buckets are visited in rings of
+     * increasing distance from the bucket containing pos, and the search
+     * stops once no unvisited bucket can hold anything closer than the
+     * best entity seen so far.  Ties are broken by the smaller y, then
+     * the smaller x, so the result doesn't depend on insertion order.
+     *
+     * @return the nearest entity, or null if the index is empty.
+     */
+    public Entity nearest(Point pos)
+    {
+        lastScanned = 0;
+        if (size == 0)
+        {
+            return null;
+        }
+
+        int px = pos.getX();
+        int py = pos.getY();
+        int bx = clamp(bucketColumn(px), columns);
+        int by = clamp(bucketRow(py), rows);
+        int maxRing = Math.max(Math.max(bx, columns - 1 - bx),
+                               Math.max(by, rows - 1 - by));
+
+        Entity nearest = null;
+        long nearestDistance = Long.MAX_VALUE;
+
+        for (int ring = 0; ring <= maxRing; ring++)
+        {
+            long ringDistance = Long.MAX_VALUE;
+
+            for (int y = by - ring; y <= by + ring; y++)
+            {
+                if (y < 0 || y >= rows)
+                {
+                    continue;
+                }
+                boolean edgeRow = y == by - ring || y == by + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+
+                for (int x = bx - ring; x <= bx + ring; x += Math.max(step, 1))
+                {
+                    if (x < 0 || x >= columns)
+                    {
+                        continue;
+                    }
+
+                    long bucketDistance = bucketDistanceSquared(px, py, x, y);
+                    ringDistance = Math.min(ringDistance, bucketDistance);
+                    List<Entity> bucket = bucket(y * columns + x);
+                    if (bucketDistance > nearestDistance || bucket == null)
+                    {
+                        continue;
+                    }
+
+                    lastScanned += bucket.size();
+                    for (Entity other : bucket)
+                    {
+                        long otherDistance = pos.distanceSquared(other.position,
+                                                                pos);
+                        if (otherDistance < nearestDistance
+                            || (otherDistance == nearestDistance
+                                && precedes(other.position, nearest.position)))
+                        {
+                            nearest = other;
+                            nearestDistance = otherDistance;
+                        }
+                    }
+                }
+            }
+
+            if (nearest != null && ringDistance > nearestDistance)
+            {
+                break;
+            }
+        }
+
+        return nearest;
+    }
+
+    private static boolean precedes(Point p1, Point p2)
+    {
+        return p1.getY() < p2.getY()
+            || (p1.getY() == p2.getY() && p1.getX() < p2.getX());
+    }
+
+    private static long bucketDistanceSquared(int px, int py, int bx, int by)
+    {
+        long dx = axisDistance(px, bx * BUCKET_SIZE);
+        long dy = axisDistance(py, by * BUCKET_SIZE);
+        return dx * dx + dy * dy;
+    }
+
+    private static int axisDistance(int p, int low)
+    {
+        int high = low + BUCKET_SIZE - 1;
+        if (p < low)
+        {
+            return low - p;
+        }
+        else if (p > high)
+        {
+            return p - high;
+        }
+        return 0;
+    }
+
+    private static int clamp(int i, int count)
+    {
+        return Math.max(0, Math.min(i, count - 1));
+    }
+
+    private static int bucketColumn(int x)
+    {
+        return Math.floorDiv(x, BUCKET_SIZE);
+    }
+
+    private static int bucketRow(int y)
+    {
+        return Math.floorDiv(y, BUCKET_SIZE);
+    }
+
+    /**
+     * @return bucket b, or null if nothing has been put in it yet.
+     */
+    private List<Entity> bucket(int b)
+    {
+        List<List<Entity>> block = blocks.get(b >>> BLOCK_BITS);
+        return block == null ? null : block.get(b & (BLOCK_SIZE - 1));
+    }
+
+    private int bucketIndex(Point pos)
+    {
+        int x = clamp(bucketColumn(pos.getX()), columns);
+        int y = clamp(bucketRow(pos.getY()), rows);
+        return y * columns + x;
+    }
+}
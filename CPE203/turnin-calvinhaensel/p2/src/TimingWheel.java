@@ -0,0 +1,263 @@
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A two-level hierarchical timing wheel.  Time is cut into ticks of
+ * a fixed width.  The inner wheel has one slot per tick for the next
+ * INNER_SLOTS ticks; the outer wheel has one slot per revolution of
+ * the inner wheel for the next OUTER_SLOTS revolutions.  Anything
+ * further out waits in an overflow heap.  With the default tick width
+ * this covers a little under three minutes, which is well past the
+ * longest action period in the world, so scheduling is O(1) and the
+ * overflow heap is rarely touched.
+ *
+ * Each slot is sorted with the event comparator just before it is
+ * drained, so events come out in exactly the same order as they would
+ * from an EventHeap.
+ */
+final class TimingWheel implements EventQueue
+{
+    /**
+     * Default width of a tick, in unscaled milliseconds.
+     */
+    public static final double TICK_MS = 10.0;
+
+    private static final int INNER_BITS = 8;
+    private static final int INNER_SLOTS = 1 << INNER_BITS;
+    private static final int INNER_MASK = INNER_SLOTS - 1;
+    private static final int OUTER_SLOTS = 64;
+    private static final int OUTER_MASK = OUTER_SLOTS - 1;
+    private static final int OVERFLOW_SLOT = INNER_SLOTS + OUTER_SLOTS;
+
+    private final Comparator<Event> descending;
+    private final double tickWidth;
+    private final EventBucket[] inner;
+    private final boolean[] innerSorted;
+    private final EventBucket[] outer;
+    private final EventHeap overflow;
+
+    /**
+     * Scratch space for sorting slots, kept so draining a slot doesn't
+     * allocate.
+     */
+    private Event[] scratch;
+
+    /**
+     * The tick the inner wheel is positioned at.  Every queued event is
+     * due at this tick or later, except for events scheduled for a time
+     * the wheel had already looked past, which are put in this slot.
+     */
+    private long cursor;
+    private int innerCount;
+    private int outerCount;
+
+    public TimingWheel(Comparator<Event> comparator, double tickWidth)
+    {
+        assert tickWidth > 0;
+        this.descending = Collections.reverseOrder(comparator);
+        this.tickWidth = tickWidth;
+        this.inner = new EventBucket[INNER_SLOTS];
+        for (int i = 0; i < INNER_SLOTS; i++)
+        {
+            inner[i] = new EventBucket();
+        }
+        this.innerSorted = new boolean[INNER_SLOTS];
+        this.outer = new EventBucket[OUTER_SLOTS];
+        for (int i = 0; i < OUTER_SLOTS; i++)
+        {
+            outer[i] = new EventBucket();
+        }
+        this.overflow = new EventHeap(comparator);
+        this.scratch = new Event[64];
+        this.cursor = 0;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return innerCount + outerCount + overflow.size();
+    }
+
+    @Override
+    public Event peek()
+    {
+        if (isEmpty())
+        {
+            return null;
+        }
+
+        EventBucket slot = currentSlot();
+        while (slot.isEmpty())
+        {
+            advance();
+            slot = currentSlot();
+        }
+
+        // slots are kept latest-first, so the earliest event is at the end
+        int index = (int) (cursor & INNER_MASK);
+        if (!innerSorted[index])
+        {
+            scratch = slot.sort(descending, scratch);
+            innerSorted[index] = true;
+        }
+        return slot.last();
+    }
+
+    @Override
+    public Event poll()
+    {
+        Event result = peek();
+        if (result != null)
+        {
+            EventBucket slot = currentSlot();
+            slot.removeLast();
+            innerCount--;
+            result.wheelSlot = -1;
+        }
+        return result;
+    }
+
+    @Override
+    public void add(Event event)
+    {
+        long tick = tickOf(event);
+
+        if (tick < cursor + INNER_SLOTS)
+        {
+            int index = (int) (Math.max(tick, cursor) & INNER_MASK);
+            inner[index].add(event);
+            innerSorted[index] = false;
+            event.wheelSlot = index;
+            innerCount++;
+        }
+        else if ((tick >> INNER_BITS) <= (cursor >> INNER_BITS) + OUTER_SLOTS)
+        {
+            int index = (int) ((tick >> INNER_BITS) & OUTER_MASK);
+            outer[index].add(event);
+            event.wheelSlot = INNER_SLOTS + index;
+            outerCount++;
+        }
+        else
+        {
+            overflow.add(event);
+            event.wheelSlot = OVERFLOW_SLOT;
+        }
+    }
+
+    @Override
+    public boolean remove(Event event)
+    {
+        int slot = event.wheelSlot;
+        boolean removed = false;
+
+        if (slot < 0)
+        {
+            return false;
+        }
+        else if (slot < INNER_SLOTS)
+        {
+            // removing keeps the rest of the slot in sorted order, and
+            // costs O(1); see EventBucket
+            removed = inner[slot].remove(event);
+            if (removed)
+            {
+                innerCount--;
+            }
+        }
+        else if (slot < OVERFLOW_SLOT)
+        {
+            removed = outer[slot - INNER_SLOTS].remove(event);
+            if (removed)
+            {
+                outerCount--;
+            }
+        }
+        else
+        {
+            removed = overflow.remove(event);
+        }
+
+        if (removed)
+        {
+            event.wheelSlot = -1;
+        }
+        return removed;
+    }
+
+    private long tickOf(Event event)
+    {
+        return (long) Math.floor(event.time / tickWidth);
+    }
+
+    private EventBucket currentSlot()
+    {
+        return inner[(int) (cursor & INNER_MASK)];
+    }
+
+    /**
+     * Move the cursor on to the next tick that might hold an event,
+     * skipping whole revolutions of the inner wheel when it is empty.
+     */
+    private void advance()
+    {
+        if (innerCount > 0)
+        {
+            cursor++;
+            if ((cursor & INNER_MASK) == 0)
+            {
+                cascade();
+            }
+        }
+        else if (outerCount > 0)
+        {
+            cursor = (cursor | INNER_MASK) + 1;
+            cascade();
+        }
+        else
+        {
+            long first = tickOf(overflow.peek());
+            cursor = Math.max(cursor, first & ~(long) INNER_MASK);
+            refill();
+        }
+    }
+
+    /**
+     * The cursor has just started a new revolution of the inner wheel,
+     * so spread the matching outer slot out over the inner wheel.
+     */
+    private void cascade()
+    {
+        EventBucket slot = outer[(int) ((cursor >> INNER_BITS) & OUTER_MASK)];
+        outerCount -= slot.size();
+        for (int i = 0; i < slot.limit(); i++)
+        {
+            Event event = slot.get(i);
+            if (event != null)
+            {
+                add(event);
+            }
+        }
+        slot.clear();
+        refill();
+    }
+
+    /**
+     * Bring overflow events that are now within the outer wheel's
+     * reach onto the wheel.
+     */
+    private void refill()
+    {
+        long horizon = (cursor >> INNER_BITS) + OUTER_SLOTS;
+        while (!overflow.isEmpty()
+               && (tickOf(overflow.peek()) >> INNER_BITS) <= horizon)
+        {
+            add(overflow.poll());
+        }
+    }
+}
@@ -1,269 +1,221 @@
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
 import edu.calpoly.spritely.AnimationFrame;
-import edu.calpoly.spritely.ImageTile;
 import edu.calpoly.spritely.Size;
-import edu.calpoly.spritely.SolidColorTile;
 import edu.calpoly.spritely.SpriteWindow;
 import edu.calpoly.spritely.Tile;
 // import Entity.java;
 
 /**
- * A representation of a virtual world, containing various entities
- * that move around a grid.  The data structures representing the
- * current state of the virtual world are split out in a separate
- * model class, called WorldModel.
+ * A window onto a virtual world, containing various entities that
+ * move around a grid.  The state of the world itself is kept in a
+ * Simulation, so several can exist in one JVM; this class only adds
+ * the window, and where the default world comes from.
  */
 public final class VirtualWorld
 {
     public static final Size TILE_SIZE = new Size(32, 32);
-    public static final Size WORLD_SIZE = new Size(40, 30);
     // Name, as decided by CSC 203 in Spring 2018:
     public static final String NAME = "Minecraft 2: Electric Boogaloo";
     public static final File IMAGE_DIR = new File("images");
 
-    public static final String[] BACKGROUND = new String[] {
-	"                   R                    ",
-	"                    R                  R",
-	" RR   RR   RR                           ",
-	"R  R R  R R  R                          ",
-	"   R R  R    R                          ",
-	" RR  R  R  RR                           ",
-	"R    R  R    R                          ",
-	"R    R  R R  R                          ",
-	"RRRR  RR   RR                           ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                    R                  R",
-	"                   R                    ",
-	"                    R                  R",
-	"                   R                    ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                                        ",
-	"                   R                    ",
-	"                    R                   "
-    };
-
+    /**
+     * The world the simulation starts from; see WorldFile.
+     */
+    public static final File WORLD_FILE = new File("default.world");
 
+    /*
+     * Settings used by runSimulation when it creates the world.  They
+     * are only read at startup; each Simulation keeps its own copy.
+     */
     public static double timeScale;
+    public static SchedulerKind schedulerKind = SchedulerKind.HEAP;
 
-    public static List<Tile> blacksmithTiles;
-    public static List<Tile> blobTiles;
-    public static List<Tile> minerTiles;
-    public static List<Tile> obstacleTiles;
-    public static List<Tile> oreTiles;
-    public static List<Tile> quakeTiles;
-    public static List<Tile> veinTiles;
-    public static List<Tile> minerFullTiles;
+    /**
+     * When set, the world file is parsed on the common ForkJoinPool.
+     * See WorldFile.load.
+     */
+    public static boolean parallelLoad;
 
-    public static WorldModel model;
-    public static EventSchedule eventSchedule;
-    public static SpriteWindow window;
-    
-    public static Tile getImageTile(String imageFileName, char text) {
-	Tile t = null;
-	File f = new File(IMAGE_DIR, imageFileName);
-	try {
-	    t = new ImageTile(f, TILE_SIZE, text);
-	} catch (IOException ex) {
-	    System.out.println("Fatal error:  Image not found in " + f);
-	    ex.printStackTrace();
-	    System.exit(1);
-	}
-	return t;
-    }
+    /**
+     * The seed for the world's random numbers.  Running again with the
+     * same seed reproduces the same world.
+     */
+    public static long seed = WorldRandom.randomSeed();
+
+    /**
+     * When set, each frame only redraws the cells that changed since
+     * the last one, so drawing costs what the activity costs rather
+     * than what the grid area costs.  Only the initial frame, which is
+     * known to start out empty, is drawn in full.  Clear it to redraw
+     * the whole grid every frame.
+     */
+    public static boolean incrementalPaint = true;
+
+    /**
+     * When set, the simulation records SimulationMetrics, which can be
+     * watched over JMX, e.g. with jconsole.
+     */
+    public static boolean metrics;
 
-    public static void setup()
+    /**
+     * The most wall time, in ms, each frame may spend running events,
+     * or 0 for no limit.  If events fall behind, the rest are left for
+     * later frames, so the window keeps redrawing while the simulation
+     * catches up; the world goes through the same states either way.
+     * Off unless asked for; 20 leaves room for drawing at 30 fps.
+     */
+    public static double frameBudgetMs;
+
+    /**
+     * When set, animations run off an AnimationClock rather than as
+     * events; see EventSchedule.useAnimationClock.
+     */
+    public static boolean animationClock;
+
+    /**
+     * When set, as well as animationClock, the clock is lazy: a tile is
+     * only worked out when it is drawn; see AnimationClock.
+     */
+    public static boolean lazyAnimation;
+
+    private final Simulation simulation;
+    private final SpriteWindow window;
+    private final boolean incremental;
+    private final long frameBudgetNanos;
+
+    public VirtualWorld(Simulation simulation, boolean incremental,
+                        double frameBudgetMs)
     {
-	window = new SpriteWindow(NAME, WORLD_SIZE);
+        this.simulation = simulation;
+        this.incremental = incremental;
+        this.frameBudgetNanos = (long) (frameBudgetMs * 1_000_000);
+	this.window = new SpriteWindow(NAME, simulation.model.size);
 	window.setFps(30f);
 	window.setTileSize(TILE_SIZE);
-        System.out.println(NAME + ".  Press 'q' to quit.");
         window.setKeyTypedHandler((char ch) -> {
             if (ch == 'q' || ch == 'Q') {
                 window.stop();
             }
         });
-        model = new WorldModel(WORLD_SIZE);
-        eventSchedule = new EventSchedule(timeScale);
-	setupBackground();
-	loadEntityImages();
-        createInitialEntities();
-        scheduleInitialActions(model, eventSchedule);
-    }
-
-    public static void setupBackground() {
-	Tile grass = getImageTile("grass.png", '.');
-	Tile rocks = getImageTile("rocks.png", '=');
-	for (int y = 0; y < WORLD_SIZE.height; y++) {
-	    for (int x = 0; x < WORLD_SIZE.width; x++) {
-		char c = BACKGROUND[y].charAt(x);
-		if (c == ' ') {
-		    model.background[y][x] = grass;
-		} else if (c == 'R') {
-		    model.background[y][x] = rocks;
-		} else {
-		    assert false;
-		}
-	    }
-	}
-    }
-
-    public static void loadEntityImages() {
-	blacksmithTiles = loadImages("blacksmith", "B");
-	blobTiles = loadImages("blob", "===*===*=");
-	minerTiles = loadImages("miner", "mMmMm");
-        minerFullTiles = loadImages("miner_full", "mM$mM");
-	obstacleTiles = loadImages("obstacle", "O");
-	oreTiles = loadImages("ore", "$");
-	quakeTiles = loadImages("quake", "QqQqQq");
-	veinTiles = loadImages("vein", "V");
-    }
-
-    public static void createInitialEntities() {
-	addInitial(Entity.createBlacksmith(new Point(0, 11)));
-	addInitial(Entity.createBlacksmith(new Point(0, 29)));
-	addInitial(Entity.createBlacksmith(new Point(19, 14)));
-	addInitial(Entity.createBlacksmith(new Point(19, 29)));
-	addInitial(Entity.createBlacksmith(new Point(20, 0)));
-	addInitial(Entity.createBlacksmith(new Point(39, 0)));
-	addInitial(Entity.createBlacksmith(new Point(39, 14)));
-	addInitial(Entity.createBlacksmith(new Point(39, 29)));
-	addInitial(Entity.createMinerNotFull(2, new Point(12,23), 954, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(17,22), 982, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(23,6), 777, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(24,26), 851, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(31,15), 933, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(31,26), 734, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(37,10), 600, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(37,18), 888, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(37,6), 991, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(5,6), 992, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(6,25), 930, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(6,3), 813, 100));
-	addInitial(Entity.createMinerNotFull(2, new Point(7,13), 913, 100));
-	addInitial(Entity.createObstacle(new Point(10, 23)));
-	addInitial(Entity.createObstacle(new Point(10, 24)));
-	addInitial(Entity.createObstacle(new Point(11, 21)));
-	addInitial(Entity.createObstacle(new Point(11, 24)));
-	addInitial(Entity.createObstacle(new Point(11, 25)));
-	addInitial(Entity.createObstacle(new Point(12, 22)));
-	addInitial(Entity.createObstacle(new Point(12, 25)));
-	addInitial(Entity.createObstacle(new Point(12, 26)));
-	addInitial(Entity.createObstacle(new Point(13, 22)));
-	addInitial(Entity.createObstacle(new Point(13, 26)));
-	addInitial(Entity.createObstacle(new Point(14, 23)));
-	addInitial(Entity.createObstacle(new Point(14, 24)));
-	addInitial(Entity.createObstacle(new Point(26, 26)));
-	addInitial(Entity.createObstacle(new Point(27, 25)));
-	addInitial(Entity.createObstacle(new Point(28, 19)));
-	addInitial(Entity.createObstacle(new Point(28, 25)));
-	addInitial(Entity.createObstacle(new Point(29, 20)));
-	addInitial(Entity.createObstacle(new Point(29, 26)));
-	addInitial(Entity.createObstacle(new Point(30, 21)));
-	addInitial(Entity.createObstacle(new Point(31, 22)));
-	addInitial(Entity.createObstacle(new Point(32, 23)));
-	addInitial(Entity.createObstacle(new Point(5, 20)));
-	addInitial(Entity.createObstacle(new Point(5, 21)));
-	addInitial(Entity.createObstacle(new Point(6, 20)));
-	addInitial(Entity.createObstacle(new Point(6, 21)));
-	addInitial(Entity.createObstacle(new Point(7, 20)));
-	addInitial(Entity.createObstacle(new Point(7, 21)));
-	addInitial(Entity.createObstacle(new Point(8, 21)));
-	addInitial(Entity.createObstacle(new Point(8, 22)));
-	addInitial(Entity.createObstacle(new Point(9, 22)));
-	addInitial(Entity.createObstacle(new Point(9, 23)));
-	addInitial(Entity.createVein(new Point(10, 25), 8366));
-	addInitial(Entity.createVein(new Point(14, 22), 8248));
-	addInitial(Entity.createVein(new Point(21, 20), 9294));
-	addInitial(Entity.createVein(new Point(27, 6), 9456));
-	addInitial(Entity.createVein(new Point(28, 23), 13422));
-	addInitial(Entity.createVein(new Point(33, 11), 10278));
-	addInitial(Entity.createVein(new Point(33, 13), 10865));
-	addInitial(Entity.createVein(new Point(33, 3), 11101));
-	addInitial(Entity.createVein(new Point(34, 19), 11702));
-	addInitial(Entity.createVein(new Point(6, 11), 15026));
-	addInitial(Entity.createVein(new Point(7, 11), 9377));
-	addInitial(Entity.createVein(new Point(8, 11), 13146));
-    }
-
-    public static void addInitial(Entity entity) {
-	assert !model.isOccupied(entity.position);
-	model.addEntity(entity);
     }
 
     /**
-     * Load a list of images for an entity.  text gives a series of
-     * characters that serve as the animation for the text 
-     * representation of the entity when in text mode.
+     * Entry point to run the virtual world simulation.
      */
-    public static List<Tile> loadImages(String fileBasename, String text) {
-	int len = text.length();
-	List<Tile> result = new ArrayList<Tile>(len);
-	if (len == 1) {
-	    result.add(getImageTile(fileBasename + ".png", text.charAt(0)));
-	} else {
-	    for (int i = 1; i <= len; i++) {
-		String name = fileBasename + i + ".png";
-		result.add(getImageTile(name, text.charAt(i - 1)));
-	    }
-	}
-	return result;
-    }
-
-    public static void scheduleInitialActions(WorldModel model,
-					      EventSchedule eventSchedule)
-    {
-        for (Entity entity : model.entities)
-        {
-            entity.scheduleActions(entity, eventSchedule, model);
+    public static void runSimulation() {
+        System.out.println("Seed: " + seed);
+        Simulation simulation = null;
+        try {
+            simulation = Simulation.createDefault(WorldAssets.load(), seed,
+                timeScale, schedulerKind, WorldGrid::create,
+                parallelLoad ? ForkJoinPool.commonPool() : null);
+        } catch (IOException ex) {
+            System.out.println("Fatal error:  Can't load " + WORLD_FILE);
+            ex.printStackTrace();
+            System.exit(1);
         }
+        if (animationClock) {
+            simulation.useAnimationClock(lazyAnimation);
+        }
+        if (metrics) {
+            try {
+                simulation.enableMetrics().register(NAME);
+            } catch (JMException ex) {
+                System.out.println("Metrics aren't available over JMX: "
+                                   + ex);
+            }
+        }
+        System.out.println(NAME + ".  Press 'q' to quit.");
+        new VirtualWorld(simulation, incrementalPaint, frameBudgetMs).run();
     }
 
     /**
-     * Entry point to run the virtual world simulation.
+     * Show the simulation in the window, advancing it as frames go by,
+     * until the window is closed.
      */
-    public static void runSimulation() {
-	setup();
-	paint(model, window.getInitialFrame());
+    public void run() {
+	WorldModel model = simulation.model;
+	EventSchedule schedule = simulation.eventSchedule;
+	model.setDirtyTracking(incremental);
+	double paintedAt = schedule.currentTime;
+	paint(model, window.getInitialFrame(), paintedAt);
 	window.start();
 	while (true) {
 	    AnimationFrame frame = window.waitForNextFrame();
 	    if (frame == null) {
 		break;
 	    }
-	    eventSchedule.processEvents(window.getTimeSinceStart());
-	    paint(model, frame);
+	    simulation.advanceTo(window.getTimeSinceStart(), frameBudgetNanos);
+	    if (incremental) {
+		paintDirty(model, frame, schedule.getAnimationClock(),
+			   paintedAt, schedule.currentTime);
+	    } else {
+		paint(model, frame, schedule.currentTime);
+	    }
+	    paintedAt = schedule.currentTime;
 	    window.showNextFrame();
 	}
     }
 
-    private static void paint(WorldModel model, AnimationFrame frame) {
+    /**
+     * Redraw everything: the background, then every entity on top of
+     * it, taken straight from the entity store, as it is at game time
+     * time.
+     */
+    private static void paint(WorldModel model, AnimationFrame frame,
+                              double time) {
         for (int y = 0; y < model.size.height; y++) {
             for (int x = 0; x < model.size.width; x++) {
-                frame.addTile(x, y, model.background[y][x]);
-                Entity occupant = model.occupant[y][x];
-                if (occupant != null) {
-                    Tile tile = occupant.getCurrentTile();
-                    frame.addTile(x, y, tile);
-                }
+                frame.addTile(x, y, model.getBackground(model.cellOf(x, y)));
+            }
+        }
+        EntityStore store = model.store;
+        for (int id = 0; id < store.limit(); id++) {
+            if (store.isLive(id)) {
+                Entity entity = store.entity[id];
+                assert store.isInStep(id);
+                // a lazy animation's tile is only known once asked for
+                int tileIndex = entity.animationStep == 0.0
+                    ? store.tileIndex[id] : entity.tileIndexAt(time);
+                frame.addTile(store.x[id], store.y[id],
+                              entity.tiles.get(tileIndex));
             }
         }
+        model.clearDirty();
+    }
+
+    /**
+     * Redraw only the cells that changed since the last paint, which
+     * showed game time paintedAt, as they are at time.  A lazy clock
+     * marks nothing dirty as animations step, so with one, it is asked
+     * to mark the cells whose tile is different at time first.
+     */
+    private static void paintDirty(WorldModel model, AnimationFrame frame,
+                                   AnimationClock clock, double paintedAt,
+                                   double time) {
+        if (clock != null && clock.isLazy()) {
+            clock.markChanged(paintedAt, time);
+        }
+        int width = model.size.width;
+        for (int i = 0; i < model.getDirtyCount(); i++) {
+            int cell = model.getDirtyCell(i);
+            paintCell(model, frame, cell % width, cell / width, time);
+        }
+        model.clearDirty();
+    }
+
+    private static void paintCell(WorldModel model, AnimationFrame frame,
+                                  int x, int y, double time) {
+        int cell = model.cellOf(x, y);
+        frame.addTile(x, y, model.getBackground(cell));
+        Entity occupant = model.getOccupant(cell);
+        if (occupant != null) {
+            Tile tile = occupant.getCurrentTile(time);
+            frame.addTile(x, y, tile);
+        }
     }
 }
@@ -0,0 +1,139 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import edu.calpoly.spritely.ImageTile;
+import edu.calpoly.spritely.Tile;
+
+/**
+ * The tiles entities and the background are drawn with.  These never
+ * change once loaded, so a single instance is shared by every world
+ * running in the JVM.
+ */
+final class WorldAssets
+{
+    public final Tile grassTile;
+    public final Tile rocksTile;
+
+    public final List<Tile> blacksmithTiles;
+    public final List<Tile> blobTiles;
+    public final List<Tile> minerTiles;
+    public final List<Tile> obstacleTiles;
+    public final List<Tile> oreTiles;
+    public final List<Tile> quakeTiles;
+    public final List<Tile> veinTiles;
+    public final List<Tile> minerFullTiles;
+
+    /**
+     * Where the tiles come from.  text gives a series of characters
+     * that serve as the animation for the text representation of the
+     * entity when in text mode; there is one tile per character.
+     */
+    private interface TileSource
+    {
+        List<Tile> load(String fileBasename, String text);
+    }
+
+    private WorldAssets(TileSource source)
+    {
+        this.grassTile = source.load("grass", ".").get(0);
+        this.rocksTile = source.load("rocks", "=").get(0);
+        this.blacksmithTiles = source.load("blacksmith", "B");
+        this.blobTiles = source.load("blob", "===*===*=");
+        this.minerTiles = source.load("miner", "mMmMm");
+        this.minerFullTiles = source.load("miner_full", "mM$mM");
+        this.obstacleTiles = source.load("obstacle", "O");
+        this.oreTiles = source.load("ore", "$");
+        this.quakeTiles = source.load("quake", "QqQqQq");
+        this.veinTiles = source.load("vein", "V");
+    }
+
+    /**
+     * @return the tiles the background is drawn with, always in the same
+     *         order; see MappedGrid.
+     */
+    public List<Tile> backgroundTiles()
+    {
+        return Arrays.asList(grassTile, rocksTile);
+    }
+
+    /**
+     * @return the tiles entities of the given kind are drawn with.
+     */
+    public List<Tile> tilesFor(EntityKind kind)
+    {
+        switch (kind)
+        {
+        case BLACKSMITH:
+            return blacksmithTiles;
+        case MINER_FULL:
+            return minerFullTiles;
+        case MINER_NOT_FULL:
+            return minerTiles;
+        case OBSTACLE:
+            return obstacleTiles;
+        case ORE:
+            return oreTiles;
+        case ORE_BLOB:
+            return blobTiles;
+        case QUAKE:
+            return quakeTiles;
+        case VEIN:
+        default:
+            return veinTiles;
+        }
+    }
+
+    /**
+     * Load the tiles from the images in VirtualWorld.IMAGE_DIR.
+     */
+    public static WorldAssets load()
+    {
+        return new WorldAssets(WorldAssets::loadImages);
+    }
+
+    /**
+     * Assets for headless runs.  No images are loaded; each list holds
+     * one null placeholder per animation frame, so animations cycle
+     * exactly as they would on screen.
+     */
+    public static WorldAssets placeholders()
+    {
+        return new WorldAssets((String fileBasename, String text) ->
+            Collections.nCopies(text.length(), (Tile) null));
+    }
+
+    public static Tile getImageTile(String imageFileName, char text) {
+	Tile t = null;
+	File f = new File(VirtualWorld.IMAGE_DIR, imageFileName);
+	try {
+	    t = new ImageTile(f, VirtualWorld.TILE_SIZE, text);
+	} catch (IOException ex) {
+	    System.out.println("Fatal error:  Image not found in " + f);
+	    ex.printStackTrace();
+	    System.exit(1);
+	}
+	return t;
+    }
+
+    /**
+     * Load a list of images for an entity.  text gives a series of
+     * characters that serve as the animation for the text 
+     * representation of the entity when in text mode.
+     */
+    public static List<Tile> loadImages(String fileBasename, String text) {
+	int len = text.length();
+	List<Tile> result = new ArrayList<Tile>(len);
+	if (len == 1) {
+	    result.add(getImageTile(fileBasename + ".png", text.charAt(0)));
+	} else {
+	    for (int i = 1; i <= len; i++) {
+		String name = fileBasename + i + ".png";
+		result.add(getImageTile(name, text.charAt(i - 1)));
+	    }
+	}
+	return Collections.unmodifiableList(result);
+    }
+}
@@ -0,0 +1,674 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import edu.calpoly.spritely.Size;
+
+/**
+ * Reads the layout of a world, its background and the entities it
+ * starts with, from a text file such as VirtualWorld.WORLD_FILE.  See
+ * default.world for the format.
+ *
+ * The file is read a buffer at a time and split into lines straight
+ * from the bytes, so memory use doesn't grow with the size of the file:
+ * besides the world itself there is only the read buffer, the longest
+ * line, and one batch of entity lines.  Background rows are applied as
+ * they are read.  Entity lines are collected into batches of
+ * BATCH_SIZE, and each batch is parsed into Entities, on a
+ * ForkJoinPool if one is given, then handed to WorldModel.addEntities
+ * in file order, so the world comes out the same either way.  Each
+ * entity is checked as it is parsed, so addEntities needn't check
+ * anything.
+ */
+final class WorldFile
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int BATCH_SIZE = 1 << 14;
+
+    /**
+     * Entity lines parsed by one task when a batch is parsed in
+     * parallel.
+     */
+    private static final int SLICE_SIZE = 1 << 10;
+
+    private static final byte[] SIZE = bytes("size");
+    private static final byte[] ROW = bytes("row");
+
+    /**
+     * The names of the entity kinds, as written in the file.
+     */
+    private static final byte[][] KIND_NAMES;
+    static
+    {
+        EntityKind[] kinds = EntityKind.values();
+        KIND_NAMES = new byte[kinds.length][];
+        for (int i = 0; i < kinds.length; i++)
+        {
+            KIND_NAMES[i] = bytes(kinds[i].name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Makes the grid for a world once the file has said how big it is.
+     */
+    interface GridFactory
+    {
+        WorldGrid create(int width, int height) throws IOException;
+    }
+
+    private WorldFile()
+    {
+    }
+
+    /**
+     * Read a world from a file into a new Simulation.  Nothing is
+     * scheduled yet; see Simulation.load.
+     *
+     * @param pool  the pool to parse entities on, or null to parse them
+     *              on the calling thread.
+     */
+    public static Simulation load(java.nio.file.Path path, WorldAssets assets,
+                                  long seed, double timeScale,
+                                  SchedulerKind kind, GridFactory grids,
+                                  ForkJoinPool pool)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ))
+        {
+            return read(channel, path.toString(), assets, seed, timeScale,
+                        kind, grids, pool);
+        }
+    }
+
+    /**
+     * As above, reading from channel until it ends.
+     *
+     * @param name  what to call the channel in error messages.
+     */
+    public static Simulation read(ReadableByteChannel channel, String name,
+                                  WorldAssets assets, long seed,
+                                  double timeScale, SchedulerKind kind,
+                                  GridFactory grids, ForkJoinPool pool)
+        throws IOException
+    {
+        Lines lines = new Lines(channel, name);
+        Line line = lines.line;
+        if (!lines.next() || !line.word(SIZE))
+        {
+            throw line.error("expected size <width> <height> first");
+        }
+        int width = line.nextInt();
+        int height = line.nextInt();
+        if (width <= 0 || height <= 0
+            || (long) width * height > Integer.MAX_VALUE)
+        {
+            throw line.error("bad size");
+        }
+        line.end();
+
+        Simulation simulation = new Simulation(assets,
+            new Size(width, height), seed, timeScale, kind,
+            grids.create(width, height));
+        WorldModel world = simulation.model;
+        world.fillBackground(assets.grassTile);
+
+        Batch batch = new Batch(name);
+        while (lines.next())
+        {
+            if (line.word(ROW))
+            {
+                readRow(world, assets, line);
+                continue;
+            }
+            batch.addLine(line);
+            if (batch.count == BATCH_SIZE)
+            {
+                addBatch(world, assets, batch, pool);
+            }
+        }
+        addBatch(world, assets, batch, pool);
+        return simulation;
+    }
+
+    /**
+     * The rest of a "row" line: y, then a character per cell.
+     */
+    private static void readRow(WorldModel world, WorldAssets assets,
+                                Line line)
+        throws IOException
+    {
+        int y = line.nextInt();
+        if (y < 0 || y >= world.size.height)
+        {
+            throw line.error("row " + y + " is off the grid");
+        }
+        int start = line.nextToken();
+        int length = line.tokenEnd - start;
+        if (length > world.size.width)
+        {
+            throw line.error("row " + y + " is too long");
+        }
+        int cell = world.cellOf(0, y);
+        for (int x = 0; x < length; x++)
+        {
+            switch (line.bytes[start + x])
+            {
+            case '.':
+                // already grass
+                break;
+            case 'R':
+                world.setBackground(cell + x, assets.rocksTile);
+                break;
+            default:
+                throw line.error("unknown background at x = " + x);
+            }
+        }
+        line.end();
+    }
+
+    /**
+     * Parse the batch's lines into entities, check them, and add them
+     * to the world.  The batch is empty afterwards.
+     */
+    private static void addBatch(WorldModel world, WorldAssets assets,
+                                 Batch batch, ForkJoinPool pool)
+        throws IOException
+    {
+        int count = batch.count;
+        if (pool == null || count <= SLICE_SIZE)
+        {
+            parseSlice(world, assets, batch, 0, count);
+        }
+        else
+        {
+            pool.invoke(new ParseTask(world, assets, batch, 0, count));
+        }
+
+        // the first error in the file is the one to report
+        for (IOException error : batch.errors)
+        {
+            if (error != null)
+            {
+                throw error;
+            }
+        }
+
+        // each entity was checked against the world as it was parsed,
+        // but not against the rest of its batch
+        int[] sorted = Arrays.copyOf(batch.cells, count);
+        Arrays.sort(sorted);
+        for (int i = 1; i < count; i++)
+        {
+            if (sorted[i] == sorted[i - 1])
+            {
+                throw new IOException(batch.name + ": two entities at "
+                                      + world.pointAt(sorted[i]));
+            }
+        }
+
+        world.addEntities(batch.entities, count);
+        batch.clear();
+    }
+
+    /**
+     * Parse entity lines from through to, exclusive, of batch.  Only
+     * reads the world, so slices can be parsed at the same time.  The
+     * first error is recorded in batch.errors and ends the slice.
+     */
+    private static void parseSlice(WorldModel world, WorldAssets assets,
+                                   Batch batch, int from, int to)
+    {
+        Line line = new Line(batch.name);
+        for (int i = from; i < to; i++)
+        {
+            line.set(batch.text, batch.starts[i], batch.starts[i + 1],
+                     batch.numbers[i]);
+            try
+            {
+                EntityKind kind = line.kind();
+                int x = line.nextInt();
+                int y = line.nextInt();
+                if (!world.withinBounds(x, y))
+                {
+                    throw line.error("(" + x + ", " + y
+                                     + ") is off the grid");
+                }
+                int cell = world.cellOf(x, y);
+                if (world.isOccupied(cell))
+                {
+                    throw line.error("(" + x + ", " + y + ") is taken");
+                }
+                batch.entities[i] = readEntity(kind, new Point(x, y),
+                                               assets, line);
+                batch.cells[i] = cell;
+                line.end();
+            }
+            catch (IOException ex)
+            {
+                batch.errors[i / SLICE_SIZE] = ex;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses a range of a batch, split into slices of SLICE_SIZE lines
+     * that start on a multiple of SLICE_SIZE, so each slice has its own
+     * place in batch.errors.
+     */
+    private static final class ParseTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final WorldModel world;
+        private final WorldAssets assets;
+        private final Batch batch;
+        private final int from;
+        private final int to;
+
+        ParseTask(WorldModel world, WorldAssets assets, Batch batch,
+                  int from, int to)
+        {
+            this.world = world;
+            this.assets = assets;
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int slices = (to - from + SLICE_SIZE - 1) / SLICE_SIZE;
+            if (slices <= 1)
+            {
+                parseSlice(world, assets, batch, from, to);
+                return;
+            }
+            int middle = from + slices / 2 * SLICE_SIZE;
+            invokeAll(new ParseTask(world, assets, batch, from, middle),
+                      new ParseTask(world, assets, batch, middle, to));
+        }
+    }
+
+    /**
+     * The arguments after the position, which depend on the kind.
+     */
+    private static Entity readEntity(EntityKind kind, Point position,
+                                     WorldAssets assets, Line line)
+        throws IOException
+    {
+        switch (kind)
+        {
+        case BLACKSMITH:
+            return Entity.createBlacksmith(assets, position);
+        case MINER_FULL:
+        {
+            int resourceLimit = line.nextInt();
+            int actionPeriod = line.nextInt();
+            int animationPeriod = line.nextInt();
+            return Entity.createMinerFull(assets, resourceLimit, position,
+                                          actionPeriod, animationPeriod);
+        }
+        case MINER_NOT_FULL:
+        {
+            int resourceLimit = line.nextInt();
+            int actionPeriod = line.nextInt();
+            int animationPeriod = line.nextInt();
+            return Entity.createMinerNotFull(assets, resourceLimit, position,
+                                             actionPeriod, animationPeriod);
+        }
+        case OBSTACLE:
+            return Entity.createObstacle(assets, position);
+        case ORE:
+            return Entity.createOre(assets, position, line.nextInt());
+        case ORE_BLOB:
+        {
+            int actionPeriod = line.nextInt();
+            int animationPeriod = line.nextInt();
+            return Entity.createOreBlob(assets, position, actionPeriod,
+                                        animationPeriod);
+        }
+        case QUAKE:
+            return Entity.createQuake(assets, position);
+        case VEIN:
+        default:
+            return Entity.createVein(assets, position, line.nextInt());
+        }
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Entity lines waiting to be parsed, their text run together, and
+     * what they parse into.
+     */
+    private static final class Batch
+    {
+        final String name;
+        byte[] text;
+        final int[] starts;     // line i is text[starts[i], starts[i + 1])
+        final int[] numbers;    // line numbers, for errors
+        final Entity[] entities;
+        final int[] cells;
+        final IOException[] errors;
+        int count;
+
+        Batch(String name)
+        {
+            this.name = name;
+            this.text = new byte[BATCH_SIZE * 32];
+            this.starts = new int[BATCH_SIZE + 1];
+            this.numbers = new int[BATCH_SIZE];
+            this.entities = new Entity[BATCH_SIZE];
+            this.cells = new int[BATCH_SIZE];
+            this.errors = new IOException[BATCH_SIZE / SLICE_SIZE];
+            this.count = 0;
+        }
+
+        /**
+         * Add the rest of line.
+         */
+        void addLine(Line line)
+        {
+            int start = starts[count];
+            int length = line.limit - line.at;
+            if (start + length > text.length)
+            {
+                text = Arrays.copyOf(text, Math.max(text.length * 2,
+                                                    start + length));
+            }
+            System.arraycopy(line.bytes, line.at, text, start, length);
+            numbers[count] = line.number;
+            starts[++count] = start + length;
+        }
+
+        void clear()
+        {
+            Arrays.fill(entities, 0, count, null);
+            count = 0;
+        }
+    }
+
+    /**
+     * The lines of a channel, one at a time, in line.  Blank lines and
+     * those starting with '#' are skipped.
+     */
+    private static final class Lines
+    {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer;
+        private boolean ended;
+        private byte[] text;
+        private int length;
+        private int number;
+
+        final Line line;
+
+        Lines(ReadableByteChannel channel, String name)
+        {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.buffer.limit(0);
+            this.ended = false;
+            this.text = new byte[256];
+            this.length = 0;
+            this.number = 0;
+            this.line = new Line(name);
+        }
+
+        /**
+         * Move on to the next line that has something on it.
+         *
+         * @return false at the end of the channel.
+         */
+        boolean next() throws IOException
+        {
+            while (readLine())
+            {
+                line.set(text, 0, length, number);
+                if (!line.isBlank())
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean readLine() throws IOException
+        {
+            length = 0;
+            boolean any = false;
+            while (true)
+            {
+                if (!buffer.hasRemaining())
+                {
+                    if (ended || !fill())
+                    {
+                        if (any)
+                        {
+                            break;
+                        }
+                        return false;
+                    }
+                }
+                any = true;
+
+                byte[] bytes = buffer.array();
+                int start = buffer.position();
+                int end = buffer.limit();
+                int i = start;
+                while (i < end && bytes[i] != '\n')
+                {
+                    i++;
+                }
+                append(bytes, start, i - start);
+                if (i < end)
+                {
+                    buffer.position(i + 1);
+                    break;
+                }
+                buffer.position(end);
+            }
+
+            number++;
+            if (length > 0 && text[length - 1] == '\r')
+            {
+                length--;
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException
+        {
+            buffer.clear();
+            int n;
+            do
+            {
+                n = channel.read(buffer);
+            }
+            while (n == 0);
+            buffer.flip();
+            if (n < 0)
+            {
+                ended = true;
+                return false;
+            }
+            return true;
+        }
+
+        private void append(byte[] bytes, int start, int count)
+        {
+            if (length + count > text.length)
+            {
+                text = Arrays.copyOf(text,
+                                     Math.max(text.length * 2, length + count));
+            }
+            System.arraycopy(bytes, start, text, length, count);
+            length += count;
+        }
+    }
+
+    /**
+     * The whitespace separated tokens of one line, which is
+     * bytes[at, end).
+     */
+    private static final class Line
+    {
+        private final String name;
+        byte[] bytes;
+        int at;
+        int limit;
+        int number;
+        int tokenEnd;
+
+        Line(String name)
+        {
+            this.name = name;
+        }
+
+        void set(byte[] bytes, int start, int limit, int number)
+        {
+            this.bytes = bytes;
+            this.at = start;
+            this.limit = limit;
+            this.number = number;
+        }
+
+        /**
+         * Whether there's nothing on the line but a comment.  Moves to
+         * the first token if there is.
+         */
+        boolean isBlank()
+        {
+            skipSpace();
+            return at == limit || bytes[at] == '#';
+        }
+
+        private void skipSpace()
+        {
+            while (at < limit && (bytes[at] == ' ' || bytes[at] == '\t'))
+            {
+                at++;
+            }
+        }
+
+        /**
+         * Move past the next token.
+         *
+         * @return where it starts; it ends at tokenEnd.
+         */
+        int nextToken() throws IOException
+        {
+            skipSpace();
+            if (at == limit)
+            {
+                throw error("line ends too soon");
+            }
+            int start = at;
+            while (at < limit && bytes[at] != ' ' && bytes[at] != '\t')
+            {
+                at++;
+            }
+            tokenEnd = at;
+            return start;
+        }
+
+        /**
+         * If the next token is word, move past it.
+         */
+        boolean word(byte[] word) throws IOException
+        {
+            int saved = at;
+            int start = nextToken();
+            if (matches(start, word))
+            {
+                return true;
+            }
+            at = saved;
+            return false;
+        }
+
+        EntityKind kind() throws IOException
+        {
+            int start = nextToken();
+            for (int i = 0; i < KIND_NAMES.length; i++)
+            {
+                if (matches(start, KIND_NAMES[i]))
+                {
+                    return EntityKind.values()[i];
+                }
+            }
+            throw error("unknown entity kind "
+                        + new String(bytes, start, tokenEnd - start,
+                                     StandardCharsets.US_ASCII));
+        }
+
+        private boolean matches(int start, byte[] word)
+        {
+            return Arrays.equals(bytes, start, tokenEnd, word, 0, word.length);
+        }
+
+        int nextInt() throws IOException
+        {
+            int start = nextToken();
+            int i = start;
+            boolean negative = bytes[i] == '-';
+            if (negative)
+            {
+                i++;
+            }
+            if (i == tokenEnd)
+            {
+                throw error("expected a number");
+            }
+            long value = 0;
+            for (; i < tokenEnd; i++)
+            {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9)
+                {
+                    throw error("expected a number");
+                }
+                if (value > Integer.MAX_VALUE)
+                {
+                    throw error("number out of range");
+                }
+                value = value * 10 + digit;
+            }
+            value = negative ? -value : value;
+            if (value != (int) value)
+            {
+                throw error("number out of range");
+            }
+            return (int) value;
+        }
+
+        /**
+         * Check there's nothing left on the line.
+         */
+        void end() throws IOException
+        {
+            skipSpace();
+            if (at < limit)
+            {
+                throw error("too much on the line");
+            }
+        }
+
+        IOException error(String message)
+        {
+            return new IOException(name + ":" + number + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import edu.calpoly.spritely.Tile;
+
+/**
+ * The background tile and occupant of every cell of a world.  Cells
+ * are named by their row-major index, y * width + x, as everywhere
+ * else in WorldModel.  FlatGrid keeps everything in arrays covering
+ * the whole grid; ChunkedGrid only allocates the parts that are used,
+ * for worlds that are too big, or too empty, for that.
+ */
+interface WorldGrid
+{
+    /**
+     * Grids with more cells than this are chunked by create.
+     */
+    int FLAT_LIMIT = 1 << 22;
+
+    /**
+     * @return a grid of the given size, with every background tile
+     *         null and no occupants.
+     */
+    static WorldGrid create(int width, int height)
+    {
+        if ((long) width * height <= FLAT_LIMIT)
+        {
+            return new FlatGrid(width, height);
+        }
+        return new ChunkedGrid(width, height);
+    }
+
+    /**
+     * Called once by the WorldModel the grid belongs to, with the store
+     * its entities' ids refer to.  Grids that keep ids rather than
+     * Entity references look occupants up in it.
+     */
+    default void attach(EntityStore store)
+    {
+    }
+
+    Tile getBackground(int cell);
+
+    void setBackground(int cell, Tile tile);
+
+    /**
+     * Set the background of every cell to tile.
+     */
+    void fillBackground(Tile tile);
+
+    Entity getOccupant(int cell);
+
+    /**
+     * Set or, with null, clear the occupant of a cell.
+     */
+    void setOccupant(int cell, Entity entity);
+
+    boolean isOccupied(int cell);
+
+    /**
+     * @return a bit per cell for the 64 cells starting at (x, y) and
+     *         going right, lowest bit first, set if the cell is
+     *         occupied.  Cells past the end of the row read as empty.
+     */
+    long occupiedRow(int x, int y);
+}
@@ -1,10 +1,10 @@
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import edu.calpoly.spritely.Size;
 import edu.calpoly.spritely.Tile;
-import java.util.LinkedList;
-import java.util.List;
 //import Point.java;
 
 /**
@@ -14,75 +14,414 @@ import java.util.List;
  */
 final class WorldModel
 {
+    /**
+     * The cell index meaning "no cell", returned by the cell versions
+     * of the queries below when there is nothing to return.
+     */
+    public static final int NO_CELL = -1;
+
+    /**
+     * Where entities are moved to when they are taken out of the world,
+     * for debugging purposes.
+     */
+    public static final Point OFF_GRID = new Point(-1, -1);
+
     public final Size size;
-    public final Tile background[][];
-    public final Entity occupant[][];
     public final Set<Entity> entities;
 
-    public WorldModel(Size gridSize)
+    /**
+     * The background and occupant of each cell.
+     */
+    private final WorldGrid grid;
+
+    /**
+     * The seed this world's random numbers were drawn from, and the
+     * generator itself.  Everything random that happens in the world
+     * comes from here, so a run can be replayed from its seed.
+     */
+    public final long seed;
+    public final WorldRandom random;
+
+    /**
+     * The tiles new entities in this world are drawn with.
+     */
+    public final WorldAssets assets;
+
+    /**
+     * One spatial index per kind of entity, kept in step with the
+     * occupancy grid so findNearest doesn't have to scan entities.
+     */
+    private final Map<EntityKind, SpatialIndex> indexes;
+
+    /**
+     * A copy of the entities' kinds, positions and tiles in flat
+     * arrays, for sweeping over every entity quickly.
+     */
+    public final EntityStore store;
+
+    /**
+     * One Point per cell, made the first time it is asked for, so that
+     * code working with cell indices can hand out Points without
+     * allocating them over and over.  They are kept in blocks of
+     * POINT_BLOCK cells, allocated as needed, so a huge, mostly empty
+     * world doesn't pay for a Point slot per cell.
+     */
+    private static final int POINT_BLOCK_BITS = 12;
+    private final Point[][] points;
+
+    /**
+     * Finds paths for the movers in this world.  Only activity actions
+     * move things, and those always run one at a time, so one is enough.
+     */
+    public final PathFinder pathFinder;
+
+    /**
+     * Distances to the nearest blacksmith, shared by all the full
+     * miners.  Blacksmiths never move, so this rarely needs rebuilding.
+     */
+    public final DistanceField blacksmithField;
+
+    /**
+     * Where to record findNearest calls, or null.  See
+     * Simulation.enableMetrics.
+     */
+    public SimulationMetrics metrics;
+
+    /**
+     * The cells that have changed since the last call to clearDirty,
+     * as row-major cell indices, without duplicates.  dirtyBits has a
+     * bit set for each cell in the list.  Nothing is recorded unless
+     * tracking has been turned on.
+     */
+    private boolean trackDirty;
+    private long[] dirtyBits;
+    private int[] dirtyCells;
+    private int dirtyCount;
+
+    /**
+     * A count of occupancy changes in each block of STAMP_BLOCK x
+     * STAMP_BLOCK cells, row-major by block, so a search can tell
+     * whether anything it looked at has changed since.  Allocated the
+     * first time it is asked for; see occupancyStamp.
+     */
+    private static final int STAMP_BLOCK_BITS = 4;
+    private int[] occupancyChanges;
+    private int stampBlocksWide;
+
+    public WorldModel(Size gridSize, WorldAssets assets)
     {
-	this.size = gridSize;
-        this.background = new Tile[gridSize.height][gridSize.width];
-        this.occupant = new Entity[gridSize.height][gridSize.width];
-        this.entities = new HashSet<Entity>();
+        this(gridSize, WorldRandom.randomSeed(), assets);
     }
 
-    public boolean withinBounds(Point pos)
+    public WorldModel(Size gridSize, long seed, WorldAssets assets)
     {
-        return pos.getY() >= 0 && pos.getY() < size.height &&
-            pos.getX() >= 0 && pos.getX() < size.width;
+        this(gridSize, seed, assets,
+             WorldGrid.create(gridSize.width, gridSize.height));
     }
 
-    public boolean isOccupied(Point pos)
+    /**
+     * Make a world stored in the given grid, which must be gridSize
+     * and empty.
+     */
+    public WorldModel(Size gridSize, long seed, WorldAssets assets,
+                      WorldGrid grid)
     {
-        return withinBounds(pos) && getOccupantCell(pos) != null;
+	this.size = gridSize;
+        this.grid = grid;
+        // kept in insertion order, so iterating it is reproducible
+        this.entities = new LinkedHashSet<Entity>();
+        this.seed = seed;
+        this.random = new WorldRandom(seed);
+        this.assets = assets;
+        this.indexes = new EnumMap<>(EntityKind.class);
+        for (EntityKind kind : EntityKind.values())
+        {
+            indexes.put(kind, new SpatialIndex(gridSize.width,
+                                               gridSize.height));
+        }
+        this.store = new EntityStore();
+        grid.attach(store);
+        this.points = new Point[((gridSize.width * gridSize.height - 1)
+                                 >>> POINT_BLOCK_BITS) + 1][];
+        this.trackDirty = false;
+        this.dirtyBits = null;
+        this.dirtyCells = new int[64];
+        this.dirtyCount = 0;
+        this.occupancyChanges = null;
+        this.stampBlocksWide = ((gridSize.width - 1) >>> STAMP_BLOCK_BITS) + 1;
+        this.pathFinder = new PathFinder(this);
+        this.blacksmithField = new DistanceField(this, EntityKind.BLACKSMITH);
+        this.metrics = null;
     }
 
-    private Entity nearestEntity(List<Entity> entities, Point pos)
+    /**
+     * Turn recording of changed cells on or off.  Only worth doing when
+     * something will draw the changes; see VirtualWorld.incrementalPaint.
+     */
+    public void setDirtyTracking(boolean on)
     {
-        if (entities.isEmpty()) {
-            return null;
-        } else {
-            Entity nearest = entities.get(0);
-            int nearestDistance = pos.distanceSquared(nearest.position, pos);
+        if (on && dirtyBits == null)
+        {
+            dirtyBits = new long[(size.width * size.height + 63) / 64];
+        }
+        trackDirty = on;
+        clearDirty();
+    }
 
-            for (Entity other : entities)
-            {
-                int otherDistance = pos.distanceSquared(other.position, pos);
+    /**
+     * Note that the cell at pos has changed and needs drawing again.
+     */
+    public void markDirty(Point pos)
+    {
+        if (trackDirty && withinBounds(pos))
+        {
+            markDirty(cellOf(pos));
+        }
+    }
 
-                if (otherDistance < nearestDistance)
+    /**
+     * @param cell  a cell within the grid.
+     */
+    public void markDirty(int cell)
+    {
+        if (trackDirty)
+        {
+            long bit = 1L << cell;
+            if ((dirtyBits[cell >>> 6] & bit) == 0)
+            {
+                dirtyBits[cell >>> 6] |= bit;
+                if (dirtyCount == dirtyCells.length)
                 {
-                    nearest = other;
-                    nearestDistance = otherDistance;
+                    dirtyCells = Arrays.copyOf(dirtyCells, dirtyCount * 2);
                 }
+                dirtyCells[dirtyCount++] = cell;
             }
+        }
+    }
+
+    public int getDirtyCount()
+    {
+        return dirtyCount;
+    }
 
-            return nearest;
+    /**
+     * @return the i'th changed cell, as y * size.width + x.
+     */
+    public int getDirtyCell(int i)
+    {
+        return dirtyCells[i];
+    }
+
+    public void clearDirty()
+    {
+        for (int i = 0; i < dirtyCount; i++)
+        {
+            dirtyBits[dirtyCells[i] >>> 6] = 0;
         }
+        dirtyCount = 0;
     }
 
-    public Entity findNearest(Point pos,
-        EntityKind kind)
+    /**
+     * A number that goes up whenever the occupant of a cell from
+     * (x0, y0) to (x1, y1) inclusive changes, and stays the same while
+     * none does.  Only changes after the first call are counted, so
+     * compare it only with what earlier calls returned.
+     */
+    public long occupancyStamp(int x0, int y0, int x1, int y1)
     {
-        List<Entity> ofType = new LinkedList<>();
-        for (Entity entity : entities)
+        if (occupancyChanges == null)
+        {
+            int blocksHigh = ((size.height - 1) >>> STAMP_BLOCK_BITS) + 1;
+            occupancyChanges = new int[stampBlocksWide * blocksHigh];
+        }
+        long stamp = 0;
+        for (int by = y0 >>> STAMP_BLOCK_BITS;
+             by <= y1 >>> STAMP_BLOCK_BITS; by++)
         {
-            if (entity.kind == kind)
+            int row = by * stampBlocksWide;
+            for (int bx = x0 >>> STAMP_BLOCK_BITS;
+                 bx <= x1 >>> STAMP_BLOCK_BITS; bx++)
             {
-                ofType.add(entity);
+                stamp += occupancyChanges[row + bx];
             }
         }
+        return stamp;
+    }
+
+    private void occupancyChanged(int cell)
+    {
+        if (occupancyChanges != null)
+        {
+            int bx = cellX(cell) >>> STAMP_BLOCK_BITS;
+            int by = cellY(cell) >>> STAMP_BLOCK_BITS;
+            occupancyChanges[by * stampBlocksWide + bx]++;
+        }
+    }
+
+    /*
+     * Cells can also be named by a single int, y * size.width + x, which
+     * is what the movement code uses; Points are only made at the edges,
+     * and then only one per cell.
+     */
+
+    public int cellOf(Point pos)
+    {
+        return pos.getY() * size.width + pos.getX();
+    }
+
+    public int cellOf(int x, int y)
+    {
+        return y * size.width + x;
+    }
+
+    public int cellX(int cell)
+    {
+        return cell % size.width;
+    }
 
-        return nearestEntity(ofType, pos);
+    public int cellY(int cell)
+    {
+        return cell / size.width;
+    }
+
+    /**
+     * @return the Point for a cell within the grid.  The same Point is
+     *         returned every time.
+     */
+    public Point pointAt(int cell)
+    {
+        Point[] block = points[cell >>> POINT_BLOCK_BITS];
+        if (block == null)
+        {
+            block = new Point[1 << POINT_BLOCK_BITS];
+            points[cell >>> POINT_BLOCK_BITS] = block;
+        }
+        int i = cell & ((1 << POINT_BLOCK_BITS) - 1);
+        Point pos = block[i];
+        if (pos == null)
+        {
+            pos = new Point(cellX(cell), cellY(cell));
+            block[i] = pos;
+        }
+        return pos;
+    }
+
+    public boolean withinBounds(Point pos)
+    {
+        return withinBounds(pos.getX(), pos.getY());
+    }
+
+    public boolean withinBounds(int x, int y)
+    {
+        return y >= 0 && y < size.height && x >= 0 && x < size.width;
+    }
+
+    public boolean isOccupied(Point pos)
+    {
+        return withinBounds(pos) && isOccupied(cellOf(pos));
+    }
+
+    /**
+     * @param cell  a cell within the grid.
+     */
+    public boolean isOccupied(int cell)
+    {
+        return grid.isOccupied(cell);
+    }
+
+    /**
+     * @param cell  a cell within the grid.
+     */
+    public Tile getBackground(int cell)
+    {
+        return grid.getBackground(cell);
+    }
+
+    public void setBackground(int cell, Tile tile)
+    {
+        grid.setBackground(cell, tile);
+        markDirty(cell);
+    }
+
+    /**
+     * Set every cell's background to tile.  On a chunked grid this
+     * costs nothing per cell, so it is the way to lay down the most
+     * common tile before setting the others one by one.
+     */
+    public void fillBackground(Tile tile)
+    {
+        grid.fillBackground(tile);
+        if (trackDirty)
+        {
+            for (int cell = 0; cell < size.width * size.height; cell++)
+            {
+                markDirty(cell);
+            }
+        }
+    }
+
+    /**
+     * Find the entity of the given kind closest to pos.  If several are
+     * equally close, the one with the smallest y (then smallest x) wins.
+     */
+    public Entity findNearest(Point pos,
+        EntityKind kind)
+    {
+        SpatialIndex index = indexes.get(kind);
+        Entity nearest = index.nearest(pos);
+        if (metrics != null)
+        {
+            metrics.findNearestScanned(index.getLastScanned());
+        }
+        return nearest;
     }
 
     public void addEntity(Entity entity)
     {
         if (withinBounds(entity.position))
         {
+            // the store first, since some grids record the entity's id
+            entity.id = store.add(entity);
             setOccupantCell(entity.position, entity);
             entities.add(entity);
+            indexes.get(entity.kind).add(entity);
+            blacksmithField.entityAdded(entity);
+            markDirty(entity.position);
+        }
+    }
+
+    /**
+     * Add the first count entities of batch, as addEntity would, but
+     * without checking anything: each must be within the grid, on an
+     * empty cell no other entity in the batch is on.  This is for
+     * loading worlds, where the loader has already checked.  The
+     * blacksmith field is thrown away once rather than updated for
+     * every entity.
+     */
+    public void addEntities(Entity[] batch, int count)
+    {
+        store.reserve(count);
+        for (int i = 0; i < count; i++)
+        {
+            Entity entity = batch[i];
+            int cell = cellOf(entity.position);
+            assert withinBounds(entity.position) && !grid.isOccupied(cell);
+            entity.id = store.add(entity);
+            grid.setOccupant(cell, entity);
+            occupancyChanged(cell);
+            entities.add(entity);
+            indexes.get(entity.kind).add(entity);
+            markDirty(cell);
         }
+        blacksmithField.invalidate();
+    }
+
+    /**
+     * Move entity to the given cell, which must be within the grid.
+     */
+    public void moveEntity(Entity entity, int cell)
+    {
+        moveEntity(entity, pointAt(cell));
     }
 
     public void moveEntity(Entity entity, Point pos)
@@ -94,6 +433,22 @@ final class WorldModel
             removeEntityAt(pos);
             setOccupantCell(pos, entity);
             entity.position = pos;
+            indexes.get(entity.kind).move(entity, oldPos, pos);
+            store.setPosition(entity.id, pos.getX(), pos.getY());
+            markDirty(oldPos);
+            markDirty(pos);
+        }
+    }
+
+    /**
+     * Copy entity's fields that change in place, resourceCount and
+     * tileIndex, to the store.
+     */
+    public void updateEntity(Entity entity)
+    {
+        if (entity.id != EntityStore.NO_ENTITY)
+        {
+            store.update(entity.id);
         }
     }
 
@@ -108,12 +463,17 @@ final class WorldModel
             && getOccupantCell(pos) != null)
         {
             Entity entity = getOccupantCell(pos);
+            indexes.get(entity.kind).remove(entity, pos);
 
             /* this moves the entity just outside of the grid for
                 debugging purposes */
-            entity.position = new Point(-1, -1);
+            entity.position = OFF_GRID;
             entities.remove(entity);
+            store.remove(entity.id);
+            entity.id = EntityStore.NO_ENTITY;
             setOccupantCell(pos, null);
+            blacksmithField.entityRemoved(entity, pos);
+            markDirty(pos);
         }
     }
 
@@ -126,33 +486,62 @@ final class WorldModel
         }
     }
 
+    /**
+     * @param cell  a cell within the grid.
+     */
+    public Entity getOccupant(int cell)
+    {
+        return grid.getOccupant(cell);
+    }
+
     private Entity getOccupantCell(Point pos)
     {
-        return occupant[pos.getY()][pos.getX()];
+        return grid.getOccupant(cellOf(pos));
     }
 
     private void
     setOccupantCell(Point pos, Entity entity)
     {
-        occupant[pos.getY()][pos.getX()] = entity;
+        int cell = cellOf(pos);
+        grid.setOccupant(cell, entity);
+        occupancyChanged(cell);
     }
 
     public Point findOpenAround(Point pos)
     {
-        for (int dy = -1; dy <= 1; dy++)
+        int cell = findOpenAround(pos.getX(), pos.getY());
+        return cell == NO_CELL ? null : pointAt(cell);
+    }
+
+    /**
+     * Find an empty cell in the 3x3 block centred on (x, y), scanning it
+     * row by row.  Each row of the block is read from the grid's
+     * occupied bits in one go.
+     *
+     * @return the cell, or NO_CELL if they are all full.
+     */
+    public int findOpenAround(int x, int y)
+    {
+        // the columns of the block that are on the grid
+        int left = Math.max(x - 1, 0);
+        int right = Math.min(x + 1, size.width - 1);
+        if (left > right)
+        {
+            return NO_CELL;
+        }
+        long columns = (1L << (right - left + 1)) - 1;
+
+        for (int ny = Math.max(y - 1, 0);
+             ny <= Math.min(y + 1, size.height - 1); ny++)
         {
-            for (int dx = -1; dx <= 1; dx++)
+            long open = ~grid.occupiedRow(left, ny) & columns;
+            if (open != 0)
             {
-                Point newPt = new Point(pos.getX() + dx, pos.getY() + dy);
-                if (withinBounds(newPt) &&
-                    !isOccupied(newPt))
-                {
-                    return newPt;
-                }
+                return cellOf(left, ny) + Long.numberOfTrailingZeros(open);
             }
         }
 
-        return null;
+        return NO_CELL;
     }
 }
 
@@ -0,0 +1,71 @@
+/**
+ * The random number generator belonging to a single WorldModel.  It
+ * is a SplitMix64 generator with its state exposed, so a world can be
+ * replayed from its seed, or resumed from wherever it got to.
+ * nextLong gives the same sequence as java.util.SplittableRandom with
+ * the same seed; nextInt takes the high bits of nextLong rather than
+ * SplittableRandom's 32-bit mix, so its values differ.  It is not
+ * thread-safe.
+ */
+final class WorldRandom
+{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    public WorldRandom(long seed)
+    {
+        this.state = seed;
+    }
+
+    /**
+     * A seed for a world that doesn't need to be reproduced.
+     */
+    public static long randomSeed()
+    {
+        return mix64(System.nanoTime() ^ System.identityHashCode(new Object()));
+    }
+
+    public long getState()
+    {
+        return state;
+    }
+
+    public void setState(long state)
+    {
+        this.state = state;
+    }
+
+    public long nextLong()
+    {
+        state += GOLDEN_GAMMA;
+        return mix64(state);
+    }
+
+    /**
+     * @return a uniformly distributed int in [0, bound).
+     */
+    public int nextInt(int bound)
+    {
+        assert bound > 0;
+        int r = (int) (nextLong() >>> 32);
+        int m = bound - 1;
+        if ((bound & m) == 0)
+        {
+            return r & m;
+        }
+        // reject values from the short last run, to avoid bias
+        for (int u = r >>> 1; u + m - (r = u % bound) < 0;
+             u = (int) (nextLong() >>> 33))
+        {
+        }
+        return r;
+    }
+
+    private static long mix64(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}